@@ -20,7 +20,9 @@ package com.github.fenixsoft.bookstore.account.application;
 
 import com.github.fenixsoft.bookstore.account.domain.AccountRepository;
 import com.github.fenixsoft.bookstore.domain.account.Account;
+import com.github.fenixsoft.bookstore.domain.security.AccountChangedEvent;
 import com.github.fenixsoft.bookstore.infrastructure.utility.Encryption;
+import org.springframework.context.ApplicationEventPublisher;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -42,9 +44,13 @@ public class AccountApplicationService {
     @Inject
     private Encryption encoder;
 
+    @Inject
+    private ApplicationEventPublisher publisher;
+
     public void createAccount(Account account) {
         account.setPassword(encoder.encode(account.getPassword()));
         repository.save(account);
+        publisher.publishEvent(new AccountChangedEvent(this, account.getUsername()));
     }
 
     public Account findAccountByUsername(String username) {
@@ -53,6 +59,7 @@ public class AccountApplicationService {
 
     public void updateAccount(Account account) {
         repository.save(account);
+        publisher.publishEvent(new AccountChangedEvent(this, account.getUsername()));
     }
 
 }
@@ -3,8 +3,10 @@ package com.github.fenixsoft.bookstore.paymnet;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 
+@EnableScheduling
 @EnableDiscoveryClient
 @SpringBootApplication(scanBasePackages = {"com.github.fenixsoft.bookstore"})
 public class PaymentApplication {
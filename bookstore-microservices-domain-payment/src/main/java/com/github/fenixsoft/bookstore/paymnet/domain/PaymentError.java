@@ -38,6 +38,13 @@ public class PaymentError extends BaseEntity {
     private Integer productId;
     private Integer amount;
 
+    private String status;
+
+    /**
+     * 已被重放的次数，达到上限后不再重放，等待人工处理
+     */
+    private Integer redrives = 0;
+
 
     public String getPayId() {
         return payId;
@@ -63,4 +70,20 @@ public class PaymentError extends BaseEntity {
     public void setAmount(Integer amount) {
         this.amount = amount;
     }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Integer getRedrives() {
+        return redrives;
+    }
+
+    public void setRedrives(Integer redrives) {
+        this.redrives = redrives;
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 支付单异常的重放器
+ * <p>
+ * 投递失败次数过多的库存操作会转入PaymentError，其中大部分只是下游短暂不可用造成的。
+ * 这里定期把PaymentError中的记录放回结算发件箱，重新计算尝试次数，由{@link SettlementRelay}再次投递，
+ * 仍然失败的会再次转入PaymentError，等待下一轮重放。转移在同一事务中完成，记录不会丢失也不会重复。
+ * <p>
+ * 每条记录最多重放max-redrives次，之后留在PaymentError中等待人工处理（如商品已删除、库存对不上等永久性失败），
+ * 重放的发件不计入重试预算的首次投递量，避免重放反复补充重试预算
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/11 11:02
+ **/
+@Named
+public class PaymentErrorRedriver {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentErrorRedriver.class);
+
+    @Inject
+    private PaymentErrorRepository peRepository;
+
+    @Inject
+    private SettlementOutboxRepository outboxRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${bookstore.payment.settlement.batch-size:100}")
+    private int batchSize;
+
+    @Value("${bookstore.payment.settlement.max-redrives:3}")
+    private int maxRedrives;
+
+    @Inject
+    public PaymentErrorRedriver(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Scheduled(fixedDelayString = "${bookstore.payment.settlement.redrive-interval:600000}")
+    public void redrive() {
+        int count;
+        do {
+            count = redriveBatch();
+            if (count > 0) {
+                log.info("重放了{}条支付单异常", count);
+            }
+        } while (count == batchSize);
+        long parked = peRepository.countParked(maxRedrives);
+        if (parked > 0) {
+            log.warn("有{}条支付单异常已重放{}次仍然失败，等待人工处理", parked, maxRedrives);
+        }
+    }
+
+    private int redriveBatch() {
+        Integer count = transactionTemplate.execute(status -> {
+            List<PaymentError> errors = peRepository.findReplayableForUpdate(maxRedrives, PageRequest.of(0, batchSize));
+            Date now = new Date();
+            errors.forEach(e -> {
+                SettlementOutbox outbox = new SettlementOutbox(e.getPayId(), e.getProductId(), e.getAmount());
+                outbox.setStatus(e.getStatus());
+                outbox.setNextAttemptTime(now);
+                outbox.setRedrives(e.getRedrives() + 1);
+                outboxRepository.save(outbox);
+            });
+            peRepository.deleteAll(errors);
+            return errors.size();
+        });
+        return count == null ? 0 : count;
+    }
+}
@@ -18,7 +18,14 @@
 
 package com.github.fenixsoft.bookstore.paymnet.domain;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import java.util.List;
 
 /**
  * 支付单数据仓库
@@ -28,4 +35,19 @@ import org.springframework.data.repository.CrudRepository;
  **/
 public interface PaymentErrorRepository extends CrudRepository<PaymentError, Integer> {
 
+    boolean existsByPayId(String payId);
+
+    /**
+     * 查询并锁定可以重放的支付单异常，记录了库存操作且重放次数未达上限的异常才能重放
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select e from PaymentError e where e.status is not null and e.redrives < :maxRedrives order by e.id")
+    List<PaymentError> findReplayableForUpdate(@Param("maxRedrives") Integer maxRedrives, Pageable pageable);
+
+    /**
+     * 重放次数已达上限、等待人工处理的异常数量
+     */
+    @Query("select count(e) from PaymentError e where e.status is not null and e.redrives >= :maxRedrives")
+    long countParked(@Param("maxRedrives") Integer maxRedrives);
+
 }
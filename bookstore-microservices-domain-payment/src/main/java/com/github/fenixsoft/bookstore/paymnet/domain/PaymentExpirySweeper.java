@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 支付单超时清扫器
+ * <p>
+ * 时间轮之外的另一种超时处理模式：不在内存中为每个支付单设置触发器，而是定期扫描数据库，
+ * 以一条UPDATE语句将一批已超时的WAITING支付单修改为TIMEOUT，再成批解冻这些支付单的库存。
+ * 状态只保存在数据库中，所以无论部署了一个还是多个支付节点，行为都是一致的：
+ * 待处理的行在事务中被悲观锁定，多个节点同时清扫时，同一个支付单只会被其中一个节点转为TIMEOUT。
+ * <p>
+ * 通过配置bookstore.payment.expiry.mode=sweeper启用
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/9 10:12
+ **/
+@Named
+@ConditionalOnProperty(prefix = "bookstore.payment.expiry", name = "mode", havingValue = PaymentExpirySweeper.MODE)
+public class PaymentExpirySweeper {
+
+    public static final String MODE = "sweeper";
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentExpirySweeper.class);
+
+    @Inject
+    private PaymentRepository paymentRepository;
+
+    @Inject
+    private PaymentService paymentService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${bookstore.payment.expiry.batch-size:500}")
+    private int batchSize;
+
+    @Inject
+    public PaymentExpirySweeper(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * 扫描所有超时的支付单，每批一个事务，直至没有超时的支付单为止
+     */
+    @Scheduled(fixedDelayString = "${bookstore.payment.expiry.sweep-interval:5000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Long expires : paymentRepository.findDistinctExpiresByPayState(Payment.State.WAITING)) {
+            Date deadline = new Date(now - expires);
+            List<String> payIds;
+            do {
+                payIds = expire(expires, deadline);
+                if (!payIds.isEmpty()) {
+                    log.info("清扫了{}个超时的支付单，状态转变为TIMEOUT", payIds.size());
+                }
+            } while (payIds.size() == batchSize);
+        }
+    }
+
+    /**
+     * 锁定一批超时的支付单，以一条UPDATE语句将其转为TIMEOUT，并在同一事务中安排解冻库存，返回被转换的支付单编号
+     */
+    private List<String> expire(Long expires, Date deadline) {
+        List<String> payIds = transactionTemplate.execute(status -> {
+            List<Payment> overdue = paymentRepository.findOverdueForUpdate(Payment.State.WAITING, expires, deadline, PageRequest.of(0, batchSize));
+            if (overdue.isEmpty()) {
+                return Collections.<String>emptyList();
+            }
+            paymentRepository.transitPayState(overdue.stream().map(Payment::getId).collect(Collectors.toList()), Payment.State.WAITING, Payment.State.TIMEOUT);
+            List<String> expired = overdue.stream().map(Payment::getPayId).collect(Collectors.toList());
+            paymentService.scheduleSettlement(expired, Payment.State.TIMEOUT);
+            return expired;
+        });
+        return payIds == null ? Collections.emptyList() : payIds;
+    }
+}
@@ -18,7 +18,17 @@
 
 package com.github.fenixsoft.bookstore.paymnet.domain;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 
 /**
  * 支付单数据仓库
@@ -30,4 +40,34 @@ public interface PaymentRepository extends CrudRepository<Payment, Integer> {
 
     Payment getByPayId(String payId);
 
+    List<Payment> findByPayState(Payment.State payState);
+
+    /**
+     * 处于指定状态的支付单中出现过的超时时长
+     * 超时时长通常只有少数几种取值，按取值分组后，“create_time + expires < now”即可转换为可走索引的“create_time < now - expires”
+     */
+    @Query("select distinct p.expires from Payment p where p.payState = :state")
+    List<Long> findDistinctExpiresByPayState(@Param("state") Payment.State state);
+
+    /**
+     * 查询并锁定创建时间早于截止时间的支付单，使用(pay_state, create_time)索引
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select p from Payment p where p.payState = :state and p.expires = :expires and p.createTime < :deadline order by p.createTime")
+    List<Payment> findOverdueForUpdate(@Param("state") Payment.State state, @Param("expires") Long expires, @Param("deadline") Date deadline, Pageable pageable);
+
+    /**
+     * 批量转换支付单状态，只有仍处于原状态的支付单会被修改
+     */
+    @Modifying
+    @Query("update Payment p set p.payState = :to where p.id in :ids and p.payState = :from")
+    int transitPayState(@Param("ids") Collection<Integer> ids, @Param("from") Payment.State from, @Param("to") Payment.State to);
+
+    /**
+     * 转换单个支付单的状态，只有仍处于原状态时才会修改，返回0表示支付单不存在或已被其他操作（支付、取消、超时）抢先转换
+     */
+    @Modifying
+    @Query("update Payment p set p.payState = :to where p.payId = :payId and p.payState = :from")
+    int transitPayState(@Param("payId") String payId, @Param("from") Payment.State from, @Param("to") Payment.State to);
+
 }
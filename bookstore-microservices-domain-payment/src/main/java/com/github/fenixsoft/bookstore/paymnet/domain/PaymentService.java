@@ -18,23 +18,33 @@
 
 package com.github.fenixsoft.bookstore.paymnet.domain;
 
-import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
 import com.github.fenixsoft.bookstore.dto.Settlement;
-import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
-import com.github.fenixsoft.bookstore.paymnet.domain.client.ProductServiceClient;
-import com.github.fenixsoft.bookstore.paymnet.infrastructure.CacheConfiguration;
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.HashedWheelScheduler;
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.StripedLockRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.Cache;
-
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.inject.Named;
-import java.util.Iterator;
-import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * 支付单相关的领域服务
@@ -45,25 +55,44 @@ import java.util.concurrent.CompletableFuture;
 @Named
 public class PaymentService {
     /**
-     * 默认支付单超时时间：2分钟（缓存TTL时间的一半）
+     * 默认支付单超时时间：2分钟
+     * 到期时由时间轮（sweeper模式下由定期扫描）将仍在等待支付的支付单转为TIMEOUT，库存解冻经结算发件箱投递。
+     * 结算单的商品明细持久保存在发件箱中，超时时间不再受任何缓存TTL的约束
      */
-    private static final long DEFAULT_PRODUCT_FROZEN_EXPIRES = CacheConfiguration.SYSTEM_DEFAULT_EXPIRES / 2;
+    private static final long DEFAULT_PRODUCT_FROZEN_EXPIRES = 2 * 60 * 1000;
 
     private static final Logger log = LoggerFactory.getLogger(PaymentService.class);
 
-    private final Timer timer = new Timer();
+    /**
+     * 支付单超时的时间轮：刻度1秒，512个桶（约8.5分钟一圈），4个工作线程，每批最多处理100个支付单
+     * 超时处理模式为sweeper时，由{@link PaymentExpirySweeper}定期扫描数据库，不使用时间轮
+     */
+    private HashedWheelScheduler<String> expiryScheduler;
+
+    @Value("${bookstore.payment.expiry.mode:wheel}")
+    private String expiryMode;
 
     @Inject
-    private ProductServiceClient stockpileService;
+    private PaymentRepository paymentRepository;
 
     @Inject
-    private PaymentRepository paymentRepository;
+    private SettlementOutboxRepository outboxRepository;
 
     @Inject
-    private PaymentErrorRepository peRepository;
+    private SettlementRelay relay;
 
-    @Resource(name = "settlement")
-    private Cache settlementCache;
+    @Resource(name = "paymentLocks")
+    private StripedLockRegistry paymentLocks;
+
+    @Resource(name = "settlementExecutor")
+    private ExecutorService settlementExecutor;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Inject
+    public PaymentService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
 
 
     /**
@@ -75,38 +104,36 @@ public class PaymentService {
         Double total = bill.getItems().stream().mapToDouble(i -> bill.productMap.get(i.getProductId()).getPrice() * i.getAmount()).sum() + 12;   // 12元固定运费，客户端写死的，这里陪着演一下，避免总价对不上
         Payment payment = new Payment(total, DEFAULT_PRODUCT_FROZEN_EXPIRES);
         paymentRepository.save(payment);
-        // 将支付单存入缓存
-        settlementCache.put(payment.getPayId(), bill);
+        // 将结算单的商品写入发件箱，与支付单在同一事务中提交
+        // 同一商品出现在多行中时合并为一条发件，与库存服务的合并一致，也使转为人工处理时不会违反payment_error的唯一索引
+        Map<Integer, Integer> merged = new LinkedHashMap<>();
+        bill.getItems().forEach(i -> merged.merge(i.getProductId(), i.getAmount(), Integer::sum));
+        outboxRepository.saveAll(merged.entrySet().stream().map(e -> new SettlementOutbox(payment.getPayId(), e.getKey(), e.getValue())).collect(Collectors.toList()));
         log.info("创建支付订单，总额：{}", payment.getTotalPrice());
         return payment;
     }
 
+    /**
+     * 支付、取消与超时都以带原状态条件的更新语句转换支付单状态，数据库保证三者之中只有一个能够成功，
+     * 即使它们发生在不同的节点上（超时扫描不经过本节点的{@link StripedLockRegistry}）
+     */
     public void accomplish(String payId) {
-        synchronized (payId.intern()) {
-            Payment payment = paymentRepository.getByPayId(payId);
-            if (payment.getPayState() == Payment.State.WAITING) {
-                payment.setPayState(Payment.State.PAYED);
-                paymentRepository.save(payment);
-                log.info("编号为{}的支付单已支付，等待扣减库存", payId);
-            } else {
-                throw new UnsupportedOperationException("当前订单不允许支付，当前状态为：" + payment.getPayState());
-            }
-        }
-        accomplishSettlement(Payment.State.PAYED, payId);
+        paymentLocks.execute(payId, () -> transit(payId, Payment.State.PAYED, "支付"));
+        log.info("编号为{}的支付单已支付，等待扣减库存", payId);
+        scheduleSettlement(Collections.singletonList(payId), Payment.State.PAYED);
     }
 
     public void cancel(String payId) {
-        synchronized (payId.intern()) {
+        paymentLocks.execute(payId, () -> transit(payId, Payment.State.CANCEL, "取消"));
+        log.info("编号为{}的支付单已被取消", payId);
+        scheduleSettlement(Collections.singletonList(payId), Payment.State.CANCEL);
+    }
+
+    private void transit(String payId, Payment.State to, String action) {
+        if (paymentRepository.transitPayState(payId, Payment.State.WAITING, to) == 0) {
             Payment payment = paymentRepository.getByPayId(payId);
-            if (payment.getPayState() == Payment.State.WAITING) {
-                payment.setPayState(Payment.State.CANCEL);
-                paymentRepository.save(payment);
-                log.info("编号为{}的支付单已被取消", payId);
-            } else {
-                throw new UnsupportedOperationException("当前订单不允许取消，当前状态为：" + payment.getPayState());
-            }
+            throw new UnsupportedOperationException("当前订单不允许" + action + "，当前状态为：" + (payment == null ? null : payment.getPayState()));
         }
-        accomplishSettlement(Payment.State.CANCEL, payId);
     }
 
     /**
@@ -116,89 +143,95 @@ public class PaymentService {
      * 则自动执行冲销，将冻结的库存商品解冻，以便其他人可以购买，并将Payment的状态修改为TIMEOUT。
      * <p>
      * 注意：
-     * 使用TimerTask意味着节点带有状态，这在分布式应用中是必须明确【反对】的，如以下缺陷：
-     * 1. 如果要考虑支付订单的取消场景，无论支付状态如何，这个TimerTask到时间之后都应当被执行。不应尝试使用TimerTask::cancel来取消任务。
+     * 使用时间轮意味着节点带有状态，这在分布式应用中是必须明确【反对】的，如以下缺陷：
+     * 1. 如果要考虑支付订单的取消场景，无论支付状态如何，触发器到时间之后都应当被执行（由超时处理检查支付单状态），不应尝试取消触发器。
      * 因为只有带有上下文状态的节点才能完成取消操作，如果要在集群中这样做，就必须使用支持集群的定时任务（如Quartz）以保证多节点下能够正常取消任务。
-     * 2. 如果节点被重启、同样会面临到状态的丢失，导致一部分处于冻结的触发器永远无法被执行，所以需要系统启动时根据数据库状态有一个恢复TimeTask的的操作
+     * 2. 如果节点被重启、同样会面临到状态的丢失，所以系统启动时会根据数据库中WAITING状态的支付单恢复触发器，见{@link #restoreAutoThawedTriggers()}
      * 3. todo 即时只考虑正常支付的情况，真正生产环境中这种代码需要一个支持集群的同步锁（如用Redis实现互斥量），避免解冻支付和该支付单被完成两个事件同时在不同的节点中发生
      */
     public void setupAutoThawedTrigger(Payment payment) {
-        String payId = payment.getPayId();
-        timer.schedule(new TimerTask() {
-            public void run() {
-                synchronized (payId.intern()) {
-                    // 使用2分钟之前的Payment到数据库中查出当前的Payment
-                    Payment currentPayment = paymentRepository.getByPayId(payId);
-                    if (currentPayment.getPayState() == Payment.State.WAITING) {
-                        payment.setPayState(Payment.State.TIMEOUT);
-                        paymentRepository.save(payment);
-                        log.info("编号为{}的支付单已超时，状态转变为TIMEOUT", payId);
-                    }
+        if (expiryScheduler == null) {
+            return;
+        }
+        expiryScheduler.schedule(payment.getPayId(), payment.getExpires(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 系统启动时，根据数据库中仍在等待支付的支付单恢复自动冲销触发器
+     * 剩余时间按照创建时间与超时时间计算，已经过期的支付单将在时间轮的下一个刻度被处理
+     */
+    @PostConstruct
+    public void restoreAutoThawedTriggers() {
+        if (PaymentExpirySweeper.MODE.equals(expiryMode)) {
+            return;
+        }
+        expiryScheduler = new HashedWheelScheduler<>("payment-expiry", 1, TimeUnit.SECONDS, 512, 4, 100, this::timeout);
+        List<Payment> payments = paymentRepository.findByPayState(Payment.State.WAITING);
+        long now = System.currentTimeMillis();
+        payments.forEach(payment -> expiryScheduler.schedule(payment.getPayId(), payment.getCreateTime().getTime() + payment.getExpires() - now, TimeUnit.MILLISECONDS));
+        if (!payments.isEmpty()) {
+            log.info("恢复了{}个支付单的自动冲销触发器", payments.size());
+        }
+    }
+
+    @PreDestroy
+    public void shutdownAutoThawedTriggers() {
+        if (expiryScheduler != null) {
+            expiryScheduler.shutdown();
+        }
+    }
+
+    /**
+     * 时间轮到期处理，由工作线程成批调用
+     * 仍未被支付（状态是WAITING）的支付单将被修改为TIMEOUT，并解冻库存
+     */
+    private void timeout(List<String> payIds) {
+        payIds.forEach(payId -> paymentLocks.execute(payId, () -> {
+            transactionTemplate.execute(status -> {
+                // 仍处于WAITING状态时才转为TIMEOUT，与支付、取消互斥
+                if (paymentRepository.transitPayState(payId, Payment.State.WAITING, Payment.State.TIMEOUT) > 0) {
+                    scheduleSettlement(Collections.singletonList(payId), Payment.State.TIMEOUT);
+                    log.info("编号为{}的支付单已超时，状态转变为TIMEOUT", payId);
                 }
-                accomplishSettlement(Payment.State.TIMEOUT, payment.getPayId());
-            }
-        }, payment.getExpires());
+                return null;
+            });
+        }));
     }
 
     /**
-     * 根据订单完成状态，完成支付结算单
+     * 根据订单完成状态，安排支付结算单的库存调整（扣减库存或者解冻）
+     * <p>
+     * 必须在修改支付单状态的同一事务中调用：库存操作写入发件箱，与支付单状态一起提交，提交后立即尝试投递。
+     * 投递失败或节点崩溃都不会丢失库存操作，由{@link SettlementRelay}按退避策略重试，保证至少投递一次，仓库服务以支付单号保证幂等
      * <p>
      * 注意：
-     * 在这是一套很不严谨的类TCC事务，仅作演示，没有BEST-EFFORT的重试，也没有将支付ID传递过去以保证幂等性，不能在正式项目中照搬
      * done 正式项目中，一般不会自己零开始写分布式事务，而是引入一套事务中间件（譬如Seata），具体分布式事务的内容请参考文档
      */
-    private void accomplishSettlement(Payment.State endState, String payId) {
-        CompletableFuture.runAsync(() -> {
-                    boolean done = doAccomplishSettlement(endState, payId);
-                    // 最大努力交付
-                    for (int i = 0; i < 2 && !done; i++) {
-                        done = doAccomplishSettlement(endState, payId);
-                    }
-                    if (done) {
-                        Payment payment = paymentRepository.getByPayId(payId);
-                        payment.setPayState(Payment.State.ACCOMPLISHED);
-                        paymentRepository.save(payment);
-                        log.info("编号为{}，状态为{} 的支付单已清算库存", payId, endState);
-                    } else {
-                        // 模拟人工介入
-                        PaymentError pe = new PaymentError();
-                        pe.setPayId(payId);
-                        Settlement settlement = (Settlement) Objects.requireNonNull(Objects.requireNonNull(settlementCache.get(payId)).get());
-                        settlement.getItems().forEach(i -> {
-                            pe.setProductId(i.getProductId());
-                            pe.setAmount(i.getAmount());
-                            peRepository.save(pe);
-                        });
-                    }
-                    // 清除缓存
-                    settlementCache.evict(payId);
-                })
-                .exceptionally(ex -> {
-                    log.error(ex.getMessage(), ex);
-                    return null;
-                });
+    public void scheduleSettlement(Collection<String> payIds, Payment.State endState) {
+        // 其他状态，无论是TIMEOUT还是CANCEL，都进行解冻
+        DeliveredStatus status = endState == Payment.State.PAYED ? DeliveredStatus.DECREASE : DeliveredStatus.THAWED;
+        outboxRepository.schedule(payIds, status.name(), new Date());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    payIds.forEach(PaymentService.this::accomplishSettlement);
+                }
+            });
+        } else {
+            payIds.forEach(this::accomplishSettlement);
+        }
     }
 
     /**
-     * 根据订单完成状态，执行库存调整（扣减库存或者解冻），返回成功标志
+     * 在结算线程池中立即投递支付单的发件，失败时等待投递器下一次重试
      */
-    private boolean doAccomplishSettlement(Payment.State endState, String payId) {
-        Settlement settlement = (Settlement) Objects.requireNonNull(Objects.requireNonNull(settlementCache.get(payId)).get());
-        Iterator<Item> ii = settlement.getItems().iterator();
-        while (ii.hasNext()) {
-            Item i = ii.next();
-            CodedMessage cm;
-            if (endState == Payment.State.PAYED) {
-                cm = stockpileService.decrease(i.getProductId(), i.getAmount(), payId);
-            } else {
-                // 其他状态，无论是TIMEOUT还是CANCEL，都进行解冻
-                cm = stockpileService.thawed(i.getProductId(), i.getAmount(), payId);
-            }
-            if (CodedMessage.CODE_SUCCESS.equals(cm.getCode())) {
-                ii.remove();
-            }
-        }
-        return settlement.getItems().isEmpty();
+    private void accomplishSettlement(String payId) {
+        CompletableFuture.runAsync(() -> relay.relay(payId), settlementExecutor)
+                .exceptionally(ex -> {
+                    log.error(ex.getMessage(), ex);
+                    return null;
+                });
     }
 
 }
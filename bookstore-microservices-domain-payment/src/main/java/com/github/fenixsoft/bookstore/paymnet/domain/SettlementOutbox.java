@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain;
+
+import com.github.fenixsoft.bookstore.domain.BaseEntity;
+
+import javax.persistence.Entity;
+import javax.persistence.Version;
+import java.util.Date;
+
+/**
+ * 结算发件箱
+ * <p>
+ * 每行对应支付单中的一件商品，在生成支付单的同一事务中写入，作为结算单商品明细的唯一持久副本。
+ * 支付单完成、取消或超时时，在修改支付单状态的同一事务中设置库存操作（status），随后由{@link SettlementRelay}投递到仓库服务，
+ * 投递成功后删除。status为空表示支付单仍在等待支付，不会被投递。
+ * 以version做乐观锁：投递器租期过后发件可能被其他投递器重新取出，原投递器迟到的写回会因版本不符而失败，不会覆盖或删除新的租约
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/10 15:12
+ **/
+@Entity
+public class SettlementOutbox extends BaseEntity {
+
+    private String payId;
+
+    private Integer productId;
+
+    private Integer amount;
+
+    private String status;
+
+    private Integer attempts = 0;
+
+    /**
+     * 由{@link PaymentErrorRedriver}放回发件箱的次数
+     */
+    private Integer redrives = 0;
+
+    private Date nextAttemptTime;
+
+    @Version
+    private Integer version;
+
+    public SettlementOutbox() {
+    }
+
+    public SettlementOutbox(String payId, Integer productId, Integer amount) {
+        this.payId = payId;
+        this.productId = productId;
+        this.amount = amount;
+    }
+
+    public String getPayId() {
+        return payId;
+    }
+
+    public void setPayId(String payId) {
+        this.payId = payId;
+    }
+
+    public Integer getProductId() {
+        return productId;
+    }
+
+    public void setProductId(Integer productId) {
+        this.productId = productId;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public void setNextAttemptTime(Date nextAttemptTime) {
+        this.nextAttemptTime = nextAttemptTime;
+    }
+
+    public Integer getRedrives() {
+        return redrives;
+    }
+
+    public void setRedrives(Integer redrives) {
+        this.redrives = redrives;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+}
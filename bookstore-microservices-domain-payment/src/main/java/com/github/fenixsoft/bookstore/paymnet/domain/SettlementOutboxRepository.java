@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 结算发件箱数据仓库
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/10 15:20
+ **/
+public interface SettlementOutboxRepository extends CrudRepository<SettlementOutbox, Integer> {
+
+    /**
+     * 设置支付单的库存操作，使其可以被投递
+     */
+    @Modifying
+    @Query("update SettlementOutbox o set o.status = :status, o.nextAttemptTime = :time where o.payId in :payIds")
+    int schedule(@Param("payIds") Collection<String> payIds, @Param("status") String status, @Param("time") Date time);
+
+    /**
+     * 查询并锁定已到投递时间的发件，同一支付单的发件排列在一起
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select o from SettlementOutbox o where o.status is not null and o.nextAttemptTime <= :now order by o.payId")
+    List<SettlementOutbox> findDueForUpdate(@Param("now") Date now, Pageable pageable);
+
+    /**
+     * 查询并锁定指定支付单已到投递时间的发件
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select o from SettlementOutbox o where o.payId = :payId and o.status is not null and o.nextAttemptTime <= :now")
+    List<SettlementOutbox> findDueForUpdate(@Param("payId") String payId, @Param("now") Date now);
+
+    long countByPayId(String payId);
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
+import com.github.fenixsoft.bookstore.paymnet.domain.client.AsyncProductServiceClient;
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.RetryPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 结算发件箱的投递器
+ * <p>
+ * 定期从发件箱中成批取出到期的发件，按支付单分组，每个支付单以一次远程调用完成库存调整。
+ * 投递成功的发件被删除，全部成功后支付单转为ACCOMPLISHED；失败的发件按{@link RetryPolicy}推迟下次投递，超过最大次数后转入PaymentError等待人工介入或由{@link PaymentErrorRedriver}重放。
+ * <p>
+ * 取出发件时会在短事务中锁定并把下次投递时间推后一个租期，远程调用在事务之外进行，因此多个支付节点可以同时投递而不会重复取到同一批发件；
+ * 节点在租期内崩溃，发件会在租期过后被重新投递。仓库服务的库存调整是幂等的，所以这里只需保证至少投递一次
+ * <p>
+ * 一批发件中各个支付单的远程调用相互独立，因此先以{@link AsyncProductServiceClient}全部发出，再逐个等待结果并写回，
+ * 一批的投递耗时取决于最慢的一次调用而不是所有调用之和
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/10 15:36
+ **/
+@Named
+public class SettlementRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(SettlementRelay.class);
+
+    /**
+     * 取出发件后的租期：30秒
+     */
+    private static final long LEASE = 30 * 1000;
+
+    @Inject
+    private SettlementOutboxRepository outboxRepository;
+
+    @Inject
+    private PaymentRepository paymentRepository;
+
+    @Inject
+    private PaymentErrorRepository peRepository;
+
+    @Inject
+    private AsyncProductServiceClient stockpileService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${bookstore.payment.settlement.batch-size:100}")
+    private int batchSize;
+
+    private final RetryPolicy retryPolicy;
+
+    @Inject
+    public SettlementRelay(PlatformTransactionManager transactionManager,
+                           @Value("${bookstore.payment.settlement.initial-backoff:1000}") long initialBackoff,
+                           @Value("${bookstore.payment.settlement.max-backoff:300000}") long maxBackoff,
+                           @Value("${bookstore.payment.settlement.max-attempts:10}") int maxAttempts,
+                           @Value("${bookstore.payment.settlement.retry-budget-ratio:0.2}") double retryBudgetRatio) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // 投递器可能在afterCommit回调中由提交事务的线程直接执行（结算线程池饱和时），此时必须开启新事务，
+        // 否则会加入已经完成的事务，写入永远不会提交
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.retryPolicy = new RetryPolicy(initialBackoff, maxBackoff, maxAttempts, retryBudgetRatio, 100);
+    }
+
+    /**
+     * 投递所有到期的发件
+     */
+    @Scheduled(fixedDelayString = "${bookstore.payment.settlement.relay-interval:1000}")
+    public void relay() {
+        List<SettlementOutbox> claimed;
+        do {
+            claimed = claim(now -> outboxRepository.findDueForUpdate(now, PageRequest.of(0, batchSize)));
+            deliver(claimed);
+        } while (claimed.size() == batchSize);
+    }
+
+    /**
+     * 立即投递指定支付单的发件，在支付单状态变化的事务提交后调用，避免等待下一次轮询
+     */
+    public void relay(String payId) {
+        deliver(claim(now -> outboxRepository.findDueForUpdate(payId, now)));
+    }
+
+    private List<SettlementOutbox> claim(Function<Date, List<SettlementOutbox>> query) {
+        List<SettlementOutbox> claimed = transactionTemplate.execute(status -> {
+            Date now = new Date();
+            List<SettlementOutbox> due = query.apply(now);
+            Date leaseExpires = new Date(now.getTime() + LEASE);
+            due.forEach(o -> o.setNextAttemptTime(leaseExpires));
+            outboxRepository.saveAll(due);
+            return due;
+        });
+        return claimed == null ? Collections.emptyList() : claimed;
+    }
+
+    private void deliver(List<SettlementOutbox> claimed) {
+        Map<String, List<SettlementOutbox>> groups = claimed.stream()
+                .collect(Collectors.groupingBy(SettlementOutbox::getPayId, LinkedHashMap::new, Collectors.toList()));
+        Map<String, CompletableFuture<List<CodedMessage>>> requests = new LinkedHashMap<>();
+        groups.forEach((payId, outbox) -> requests.put(payId, send(payId, outbox)));
+        groups.forEach((payId, outbox) -> {
+            try {
+                record(payId, outbox, await(payId, requests.get(payId)));
+            } catch (ObjectOptimisticLockingFailureException e) {
+                // 远程调用超过了租期，发件已被其他投递器重新取出，由新的租约写回结果
+                log.warn("编号为{}的支付单发件已被重新取出，放弃本次写回", payId);
+            } catch (Exception e) {
+                // 投递结果无法写回时，发件在租期过后会被重新投递
+                log.error("编号为{}的支付单结算投递失败", payId, e);
+            }
+        });
+    }
+
+    private CompletableFuture<List<CodedMessage>> send(String payId, List<SettlementOutbox> outbox) {
+        DeliveredStatus status = DeliveredStatus.valueOf(outbox.get(0).getStatus());
+        List<Item> items = outbox.stream().map(o -> new Item(o.getAmount(), o.getProductId())).collect(Collectors.toList());
+        // 只有首次投递计入重试预算的请求量，重放的发件本身就是重试
+        if (outbox.stream().anyMatch(o -> o.getAttempts() == 0 && o.getRedrives() == 0)) {
+            retryPolicy.onRequest();
+        }
+        try {
+            return stockpileService.setDeliveredStatus(status, payId, items);
+        } catch (Exception e) {
+            CompletableFuture<List<CodedMessage>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private List<CodedMessage> await(String payId, CompletableFuture<List<CodedMessage>> request) {
+        try {
+            List<CodedMessage> results = request.join();
+            return results == null ? Collections.emptyList() : results;
+        } catch (Exception e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            log.warn("编号为{}的支付单调整库存失败：{}", payId, cause.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private void record(String payId, List<SettlementOutbox> outbox, List<CodedMessage> answers) {
+        DeliveredStatus status = DeliveredStatus.valueOf(outbox.get(0).getStatus());
+        transactionTemplate.execute(tx -> {
+            Date now = new Date();
+            for (int i = 0; i < outbox.size(); i++) {
+                SettlementOutbox o = outbox.get(i);
+                if (i < answers.size() && CodedMessage.CODE_SUCCESS.equals(answers.get(i).getCode())) {
+                    outboxRepository.delete(o);
+                } else if (retryPolicy.isExhausted(o.getAttempts() + 1)) {
+                    // 模拟人工介入
+                    PaymentError pe = new PaymentError();
+                    pe.setPayId(payId);
+                    pe.setProductId(o.getProductId());
+                    pe.setAmount(o.getAmount());
+                    pe.setStatus(o.getStatus());
+                    pe.setRedrives(o.getRedrives());
+                    peRepository.save(pe);
+                    outboxRepository.delete(o);
+                    log.error("编号为{}的支付单调整商品{}的库存失败{}次，转为人工处理", payId, o.getProductId(), retryPolicy.getMaxAttempts());
+                } else if (retryPolicy.tryRetry()) {
+                    o.setAttempts(o.getAttempts() + 1);
+                    o.setNextAttemptTime(new Date(now.getTime() + retryPolicy.backoff(o.getAttempts())));
+                    outboxRepository.save(o);
+                } else {
+                    // 重试预算耗尽，说明下游大面积失败，不计入尝试次数，以最长退避时间推迟投递
+                    o.setNextAttemptTime(new Date(now.getTime() + retryPolicy.getMaxBackoff()));
+                    outboxRepository.save(o);
+                }
+            }
+            if (outboxRepository.countByPayId(payId) == 0 && !peRepository.existsByPayId(payId)) {
+                Payment payment = paymentRepository.getByPayId(payId);
+                payment.setPayState(Payment.State.ACCOMPLISHED);
+                paymentRepository.save(payment);
+                log.info("编号为{}，操作为{} 的支付单已清算库存", payId, status);
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.domain.client;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 仓库商品和库存相关远程服务的异步版本
+ * <p>
+ * 调用立即返回{@link CompletableFuture}，不占用调用者线程等待网络，适用于需要同时发出多个相互独立的远程调用的场景。
+ * 目前只有结算发件箱的投递需要这样做，其余调用仍使用同步的{@link ProductServiceClient}
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 16:10
+ **/
+public interface AsyncProductServiceClient {
+
+    /**
+     * 一次调用调整支付单中全部商品的库存，返回值与items一一对应
+     */
+    CompletableFuture<List<CodedMessage>> setDeliveredStatus(DeliveredStatus status, String payId, List<Item> items);
+}
@@ -59,9 +59,25 @@ public interface ProductServiceClient {
     @Consumes(MediaType.APPLICATION_JSON)
     CodedMessage setDeliveredStatus(@PathParam("productId") Integer productId, @QueryParam("status") DeliveredStatus status, @QueryParam("amount") Integer amount, @QueryParam("payId") String payId);
 
+    /**
+     * 一次调用调整支付单中全部商品的库存，返回值与items一一对应
+     */
+    @PATCH
+    @Path("/restful/products/stockpile/delivered")
+    @Consumes(MediaType.APPLICATION_JSON)
+    List<CodedMessage> setDeliveredStatus(@QueryParam("status") DeliveredStatus status, @QueryParam("payId") String payId, List<Item> items);
+
     @GET
     @Path("/restful/products/stockpile/{productId}")
     @Consumes(MediaType.APPLICATION_JSON)
     Stockpile queryStockpile(@PathParam("productId") Integer productId);
 
+    /**
+     * 一次调用查询多个产品的库存，不存在的产品不会出现在结果中
+     */
+    @GET
+    @Path("/restful/products/stockpile")
+    @Consumes(MediaType.APPLICATION_JSON)
+    List<Stockpile> queryStockpiles(@QueryParam("productIds") Collection<Integer> productIds);
+
 }
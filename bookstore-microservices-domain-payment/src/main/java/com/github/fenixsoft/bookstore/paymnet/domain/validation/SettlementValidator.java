@@ -18,13 +18,21 @@
 
 package com.github.fenixsoft.bookstore.paymnet.domain.validation;
 
+import javax.annotation.Resource;
 import javax.inject.Inject;
 
+import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
 import com.github.fenixsoft.bookstore.paymnet.domain.client.ProductServiceClient;
+import com.github.fenixsoft.bookstore.dto.Item;
 import com.github.fenixsoft.bookstore.dto.Settlement;
+import org.springframework.cache.Cache;
 
 import javax.validation.ConstraintValidator;
 import javax.validation.ConstraintValidatorContext;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * 结算单验证器
@@ -34,6 +42,8 @@ import javax.validation.ConstraintValidatorContext;
  * 这个验证器的目的不在于保证商品高并发情况（如秒杀活动）下不超卖，而在于避免库存不足时仍可下单。高并发下的超卖是一种“不可重复读”现象
  * （即读取过的数据在事务期间被另一个事务改变），如要严谨地避免，需要把数据库的隔离级别从默认的“Read Committed”提升至“Repeatable Read”
  * 除了MySQL（InnoDB）外，主流的数据库，如Oracle、SQLServer默认都是Read committed，提升隔离级别会显著影响数据库的并发能力。
+ * <p>
+ * 清单中全部商品的库存以一次远程调用查询，结果在本地短时缓存，不存在的商品视为库存不足
  *
  * @author icyfenix@gmail.com
  * @date 2020/3/16 9:02
@@ -43,8 +53,25 @@ public class SettlementValidator implements ConstraintValidator<SufficientStock,
     @Inject
     private ProductServiceClient service;
 
+    @Resource(name = "stockpile")
+    private Cache stockpileCache;
+
     @Override
     public boolean isValid(Settlement value, ConstraintValidatorContext context) {
-        return value.getItems().stream().noneMatch(i -> service.queryStockpile(i.getProductId()).getAmount() < i.getAmount());
+        Map<Integer, Stockpile> stocks = new HashMap<>();
+        value.getItems().forEach(i -> {
+            Cache.ValueWrapper cached = stockpileCache.get(i.getProductId());
+            if (cached != null) {
+                stocks.put(i.getProductId(), (Stockpile) cached.get());
+            }
+        });
+        List<Integer> missing = value.getItems().stream().map(Item::getProductId).filter(id -> !stocks.containsKey(id)).distinct().collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            service.queryStockpiles(missing).forEach(s -> {
+                stockpileCache.put(s.getId(), s);
+                stocks.put(s.getId(), s);
+            });
+        }
+        return value.getItems().stream().allMatch(i -> stocks.containsKey(i.getProductId()) && stocks.get(i.getProductId()).getAmount() >= i.getAmount());
     }
 }
@@ -32,9 +32,13 @@ public class CacheConfiguration {
         return manager;
     }
 
-    @Bean(name = "settlement")
-    public Cache getSettlementTTLCache() {
-        return new CaffeineCache("settlement", Caffeine.newBuilder().expireAfterAccess(SYSTEM_DEFAULT_EXPIRES, TimeUnit.MILLISECONDS).build());
+    /**
+     * 库存的短时缓存：2秒
+     * 仅用于结算单校验，校验之后紧接着就是冻结库存，冻结操作本身会以数据库中的库存为准
+     */
+    @Bean(name = "stockpile")
+    public Cache getStockpileTTLCache() {
+        return new CaffeineCache("stockpile", Caffeine.newBuilder().expireAfterWrite(2, TimeUnit.SECONDS).maximumSize(10000).build());
     }
 
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Collections;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 为系统提供代码上使用的线程池
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/10 11:05
+ **/
+@Configuration
+public class ExecutorConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutorConfiguration.class);
+
+    /**
+     * 结算线程池
+     * <p>
+     * 结算要执行阻塞的远程调用与数据库访问，不应使用ForkJoinPool.commonPool（只有CPU核数-1个线程，且与并行流等共用）。
+     * 这里使用有界的线程池与队列，队列满后由提交任务的线程自己执行（CallerRunsPolicy），以此对上游形成背压，而不是无限堆积任务。
+     * 队列长度、活动线程数、任务执行时间等指标以“executor”为前缀、“name=settlement”为标签记录到监控中。
+     * <p>
+     * 运行在支持虚拟线程的JDK上时，可以配置为每个任务使用一个虚拟线程，此时不再需要线程数量与队列的限制
+     */
+    @Bean(name = "settlementExecutor", destroyMethod = "shutdown")
+    public ExecutorService getSettlementExecutor(MeterRegistry registry,
+                                                 @Value("${bookstore.payment.settlement.threads:8}") int threads,
+                                                 @Value("${bookstore.payment.settlement.queue-capacity:1000}") int queueCapacity,
+                                                 @Value("${bookstore.payment.settlement.virtual-threads:false}") boolean virtualThreads) {
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            AtomicInteger sequence = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread thread = new Thread(r, "settlement-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return ExecutorServiceMetrics.monitor(registry, executor, "settlement", Collections.emptyList());
+    }
+
+    /**
+     * 项目以Java 8为编译目标，只能通过反射创建虚拟线程执行器，运行时不支持时返回null
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("当前运行时不支持虚拟线程，结算线程池使用平台线程");
+            return null;
+        }
+    }
+
+}
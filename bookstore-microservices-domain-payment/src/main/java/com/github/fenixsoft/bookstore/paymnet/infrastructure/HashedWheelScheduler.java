@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮调度器
+ * <p>
+ * 用于大量“到点后处理一次”的超时任务，如支付单的自动冲销。与{@link java.util.Timer}相比：
+ * 1. Timer以二叉堆保存任务，每次插入代价为O(log n)；时间轮将任务按到期时间散列到固定数量的桶中，插入代价为O(1)
+ * 2. Timer的任务在唯一的定时线程上执行，一个慢任务（如阻塞在数据库上）会推迟其他所有任务；
+ * 时间轮的指针线程只负责找出到期的任务，再把它们成批交给工作线程池处理
+ * <p>
+ * 时间轮的精度为一个刻度（tick），任务最多会比预定时间晚一个刻度被处理
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/8 14:26
+ **/
+public class HashedWheelScheduler<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelScheduler.class);
+
+    private final long tickNanos;
+    private final Deque<Entry<T>>[] wheel;
+    private final int mask;
+    private final int batchSize;
+    private final Consumer<List<T>> handler;
+
+    /**
+     * 新加入的任务先放入此队列，由指针线程在每个刻度转移到桶中，因此桶只会被指针线程访问，无需同步
+     */
+    private final Queue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    private final Thread ticker;
+    private final long startTime = System.nanoTime();
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * @param name      调度器名称，用于线程命名
+     * @param tick      时间轮刻度
+     * @param unit      刻度的时间单位
+     * @param wheelSize 时间轮的桶数量，会向上取整为2的幂
+     * @param workers   处理到期任务的工作线程数量
+     * @param batchSize 每批交给工作线程的到期任务数量上限
+     * @param handler   到期任务的处理器
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelScheduler(String name, long tick, TimeUnit unit, int wheelSize, int workers, int batchSize, Consumer<List<T>> handler) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Deque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.batchSize = batchSize;
+        this.handler = handler;
+        AtomicInteger sequence = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, name + "-worker-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = new Thread(this::run, name + "-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * 安排目标在指定延迟后到期
+     */
+    public void schedule(T target, long delay, TimeUnit unit) {
+        pending.add(new Entry<>(target, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0))));
+    }
+
+    /**
+     * 停止时间轮，未到期的任务将被丢弃
+     */
+    public void shutdown() {
+        running = false;
+        ticker.interrupt();
+        workers.shutdown();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - (System.nanoTime() - startTime) + 999_999);
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferPending();
+            dispatch(expire(wheel[(int) (tick & mask)]));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        for (Entry<T> entry = pending.poll(); entry != null; entry = pending.poll()) {
+            long calculated = entry.deadline / tickNanos;
+            entry.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的任务放入当前桶，在本刻度立即处理
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    private List<T> expire(Deque<Entry<T>> bucket) {
+        List<T> expired = new ArrayList<>();
+        Iterator<Entry<T>> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Entry<T> entry = iterator.next();
+            if (entry.remainingRounds <= 0) {
+                iterator.remove();
+                expired.add(entry.target);
+            } else {
+                entry.remainingRounds--;
+            }
+        }
+        return expired;
+    }
+
+    private void dispatch(List<T> expired) {
+        for (int from = 0; from < expired.size(); from += batchSize) {
+            List<T> batch = expired.subList(from, Math.min(from + batchSize, expired.size()));
+            workers.execute(() -> {
+                try {
+                    handler.accept(batch);
+                } catch (Exception e) {
+                    log.error("处理到期任务失败", e);
+                }
+            });
+        }
+    }
+
+    private static class Entry<T> {
+        final T target;
+        final long deadline;
+        long remainingRounds;
+
+        Entry(T target, long deadline) {
+            this.target = target;
+            this.deadline = deadline;
+        }
+    }
+}
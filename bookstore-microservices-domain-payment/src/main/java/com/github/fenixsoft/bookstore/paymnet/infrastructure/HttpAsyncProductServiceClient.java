@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
+import com.github.fenixsoft.bookstore.infrastructure.security.ServiceTokenManager;
+import com.github.fenixsoft.bookstore.paymnet.domain.client.AsyncProductServiceClient;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.springframework.context.annotation.Profile;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 基于Apache HttpAsyncClient（NIO）的异步仓库服务客户端
+ * <p>
+ * 所有请求共用少量IO线程与一个连接池，等待响应期间不占用任何线程。服务实例由Ribbon的{@link LoadBalancerClient}选择，
+ * 请求带上与Feign相同的客户端模式令牌（见{@link ServiceTokenManager}），因此与同步的Feign客户端访问的是同一组接口
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 16:25
+ **/
+@Named
+@Profile("!test")
+public class HttpAsyncProductServiceClient implements AsyncProductServiceClient {
+
+    private static final String SERVICE_ID = "warehouse";
+
+    private final CloseableHttpAsyncClient client;
+
+    private final LoadBalancerClient loadBalancer;
+
+    private final ServiceTokenManager tokenManager;
+
+    private final ObjectMapper mapper;
+
+    @Inject
+    public HttpAsyncProductServiceClient(LoadBalancerClient loadBalancer,
+                                         ServiceTokenManager tokenManager,
+                                         ObjectMapper mapper,
+                                         @Value("${bookstore.payment.async-client.io-threads:2}") int ioThreads,
+                                         @Value("${bookstore.payment.async-client.max-connections:200}") int maxConnections,
+                                         @Value("${bookstore.payment.async-client.max-connections-per-route:50}") int maxPerRoute,
+                                         @Value("${bookstore.payment.async-client.connect-timeout:2000}") int connectTimeout,
+                                         @Value("${bookstore.payment.async-client.socket-timeout:20000}") int socketTimeout) throws IOReactorException {
+        this.loadBalancer = loadBalancer;
+        this.tokenManager = tokenManager;
+        this.mapper = mapper;
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(ioThreads).build()));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        this.client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(socketTimeout)
+                        .build())
+                .build();
+        this.client.start();
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    public CompletableFuture<List<CodedMessage>> setDeliveredStatus(DeliveredStatus status, String payId, List<Item> items) {
+        return execute(() -> withBody(new HttpPatch(uri("/restful/products/stockpile/delivered")
+                        .addParameter("status", status.name())
+                        .addParameter("payId", payId)
+                        .build()), items),
+                new TypeReference<List<CodedMessage>>() {
+                });
+    }
+
+    private <T> CompletableFuture<T> execute(RequestFactory factory, TypeReference<T> type) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        HttpRequestBase request;
+        try {
+            request = factory.create();
+            request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + tokenManager.getToken().getValue());
+            request.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    int code = response.getStatusLine().getStatusCode();
+                    byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+                    if (code / 100 != 2) {
+                        throw new IOException(String.format("%s %s 返回%d：%s", request.getMethod(), request.getURI(), code, new String(body, StandardCharsets.UTF_8)));
+                    }
+                    future.complete(body.length == 0 ? null : mapper.readValue(body, type));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    private URIBuilder uri(String path) {
+        ServiceInstance instance = loadBalancer.choose(SERVICE_ID);
+        if (instance == null) {
+            throw new IllegalStateException("没有可用的服务实例：" + SERVICE_ID);
+        }
+        URI base = instance.getUri();
+        return new URIBuilder(base).setPath(path);
+    }
+
+    private HttpEntityEnclosingRequestBase withBody(HttpEntityEnclosingRequestBase request, Object body) throws IOException {
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(body), ContentType.APPLICATION_JSON));
+        return request;
+    }
+
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpRequestBase create() throws Exception;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 为系统提供代码上使用的锁
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/9 16:20
+ **/
+@Configuration
+public class LockConfiguration {
+
+    /**
+     * 支付单的锁：1024把锁，以支付单号为键
+     */
+    @Bean(name = "paymentLocks")
+    public StripedLockRegistry getPaymentLocks(MeterRegistry registry) {
+        return new StripedLockRegistry("payment.lock", 1024, registry);
+    }
+
+}
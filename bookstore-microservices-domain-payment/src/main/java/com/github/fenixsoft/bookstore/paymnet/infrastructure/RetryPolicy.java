@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 重试策略
+ * <p>
+ * 1. 指数退避：第n次失败后等待initialBackoff * 2^(n-1)，不超过maxBackoff
+ * 2. 抖动：实际等待时间在退避时间的一半到全部之间随机取值，避免同一时刻失败的请求在同一时刻一齐重试
+ * 3. 重试预算：每次首次请求存入ratio个令牌，每次重试消耗一个令牌，令牌不足时不再立即重试。
+ * 下游短暂过载时，重试量最多只占正常请求量的ratio倍，而不是把每个失败的请求都放大成多次请求
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/11 10:18
+ **/
+public class RetryPolicy {
+
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final int maxAttempts;
+    private final double ratio;
+    private final double capacity;
+    private double tokens;
+
+    /**
+     * @param initialBackoff 首次失败后的退避时间，单位：毫秒
+     * @param maxBackoff     最长退避时间，单位：毫秒
+     * @param maxAttempts    最大尝试次数
+     * @param ratio          重试量与首次请求量的比例上限
+     * @param capacity       预算中最多可积累的令牌数
+     */
+    public RetryPolicy(long initialBackoff, long maxBackoff, int maxAttempts, double ratio, double capacity) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.maxAttempts = maxAttempts;
+        this.ratio = ratio;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    /**
+     * 记录一次首次请求，向预算中存入令牌
+     */
+    public synchronized void onRequest() {
+        tokens = Math.min(capacity, tokens + ratio);
+    }
+
+    /**
+     * 申请一次重试，预算不足时返回false
+     */
+    public synchronized boolean tryRetry() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 已失败attempts次后是否应当放弃
+     */
+    public boolean isExhausted(int attempts) {
+        return attempts >= maxAttempts;
+    }
+
+    /**
+     * 已失败attempts次后，到下次重试前应等待的时间，单位：毫秒
+     */
+    public long backoff(int attempts) {
+        long exponential = Math.min(maxBackoff, initialBackoff << Math.min(Math.max(attempts - 1, 0), 30));
+        return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+
+    /**
+     * 预算不足时的等待时间，单位：毫秒
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
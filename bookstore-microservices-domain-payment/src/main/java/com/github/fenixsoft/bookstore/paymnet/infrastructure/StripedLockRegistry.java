@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.paymnet.infrastructure;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 分段锁注册表
+ * <p>
+ * 以固定数量的锁承载任意多个键（如支付单号），键被散列到其中一把锁上。用于替代synchronized(key.intern())：
+ * 1. intern()会把每一个UUID都放入JVM的字符串常量表，永远不会被清理，并且会增加GC扫描根节点的开销
+ * 2. 被intern()的字符串是全局共享的对象，任何无关的代码都可能锁住它
+ * <p>
+ * 不同的键可能落在同一把锁上，这只会带来额外的串行化，不影响正确性；持有一把锁时不应再去获取另一把锁。
+ * 锁的竞争次数与等待时间会记录到监控指标中，可据此调整锁的数量
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/9 16:03
+ **/
+public class StripedLockRegistry {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final Counter contended;
+    private final Timer waiting;
+
+    /**
+     * @param name     锁的名称，用作监控指标的前缀
+     * @param stripes  锁的数量，会向上取整为2的幂
+     * @param registry 监控指标注册表
+     */
+    public StripedLockRegistry(String name, int stripes, MeterRegistry registry) {
+        int size = Integer.highestOneBit(Math.max(stripes, 2) - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.contended = Counter.builder(name + ".contended").description("获取锁时发生竞争的次数").register(registry);
+        this.waiting = Timer.builder(name + ".wait").description("发生竞争时等待锁的时间").register(registry);
+    }
+
+    /**
+     * 持有键对应的锁执行操作
+     */
+    public void execute(String key, Runnable action) {
+        execute(key, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 持有键对应的锁执行操作，返回操作的结果
+     */
+    public <T> T execute(String key, Supplier<T> action) {
+        ReentrantLock lock = stripes[spread(key.hashCode()) & mask];
+        if (!lock.tryLock()) {
+            contended.increment();
+            long start = System.nanoTime();
+            lock.lock();
+            waiting.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,6 +1,7 @@
 DROP TABLE wallet IF EXISTS;
 DROP TABLE payment IF EXISTS;
 DROP TABLE payment_error IF EXISTS;
+DROP TABLE settlement_outbox IF EXISTS;
 
 CREATE TABLE wallet
 (
@@ -19,12 +20,30 @@ CREATE TABLE payment
     payment_link VARCHAR(300),
     pay_state    VARCHAR(20)
 );
+CREATE INDEX payment_state_time ON payment (pay_state, create_time);
 
 CREATE TABLE payment_error
 (
     id           INTEGER IDENTITY PRIMARY KEY,
     pay_id       VARCHAR(100),
     product_id   INTEGER,
-    amount       INTEGER
+    amount       INTEGER,
+    status       VARCHAR(20),
+    redrives     INTEGER DEFAULT 0 NOT NULL
 );
-CREATE UNIQUE INDEX pay_stock ON payment_error (pay_id,product_id);
\ No newline at end of file
+CREATE UNIQUE INDEX pay_stock ON payment_error (pay_id,product_id);
+
+CREATE TABLE settlement_outbox
+(
+    id                INTEGER IDENTITY PRIMARY KEY,
+    pay_id            VARCHAR(100),
+    product_id        INTEGER,
+    amount            INTEGER,
+    status            VARCHAR(20),
+    attempts          INTEGER DEFAULT 0 NOT NULL,
+    redrives          INTEGER DEFAULT 0 NOT NULL,
+    next_attempt_time DATETIME,
+    version           INTEGER DEFAULT 0 NOT NULL
+);
+CREATE INDEX outbox_pay ON settlement_outbox (pay_id);
+CREATE INDEX outbox_due ON settlement_outbox (next_attempt_time);
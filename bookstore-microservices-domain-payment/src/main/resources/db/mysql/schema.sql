@@ -1,5 +1,7 @@
 DROP TABLE IF EXISTS payment;
 DROP TABLE IF EXISTS wallet;
+DROP TABLE IF EXISTS payment_error;
+DROP TABLE IF EXISTS settlement_outbox;
 
 CREATE TABLE IF NOT EXISTS wallet
 (
@@ -16,5 +18,32 @@ CREATE TABLE IF NOT EXISTS payment
     total_price  DECIMAL,
     expires      INTEGER          NOT NULL,
     payment_link VARCHAR(300),
-    pay_state    VARCHAR(20)
+    pay_state    VARCHAR(20),
+    INDEX (pay_state, create_time)
+) engine = InnoDB;
+
+CREATE TABLE IF NOT EXISTS payment_error
+(
+    id         INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    pay_id     VARCHAR(100),
+    product_id INTEGER UNSIGNED,
+    amount     INTEGER,
+    status     VARCHAR(20),
+    redrives   INTEGER NOT NULL DEFAULT 0,
+    UNIQUE INDEX (pay_id, product_id)
+) engine = InnoDB;
+
+CREATE TABLE IF NOT EXISTS settlement_outbox
+(
+    id                INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    pay_id            VARCHAR(100),
+    product_id        INTEGER UNSIGNED,
+    amount            INTEGER,
+    status            VARCHAR(20),
+    attempts          INTEGER          NOT NULL DEFAULT 0,
+    redrives          INTEGER          NOT NULL DEFAULT 0,
+    next_attempt_time DATETIME,
+    version           INTEGER          NOT NULL DEFAULT 0,
+    INDEX (pay_id),
+    INDEX (next_attempt_time)
 ) engine = InnoDB;
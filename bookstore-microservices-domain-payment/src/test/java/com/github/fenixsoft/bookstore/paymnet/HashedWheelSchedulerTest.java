@@ -0,0 +1,81 @@
+package com.github.fenixsoft.bookstore.paymnet;
+
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.HashedWheelScheduler;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 15:20
+ **/
+class HashedWheelSchedulerTest {
+
+    @Test
+    void expireInDeadlineOrder() throws InterruptedException {
+        List<String> expired = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        // 8个桶、刻度10毫秒，一圈80毫秒，250毫秒的任务需要转过多圈才到期
+        HashedWheelScheduler<String> scheduler = new HashedWheelScheduler<>("test", 10, TimeUnit.MILLISECONDS, 8, 1, 100, batch -> {
+            expired.addAll(batch);
+            batch.forEach(t -> latch.countDown());
+        });
+        try {
+            scheduler.schedule("c", 250, TimeUnit.MILLISECONDS);
+            scheduler.schedule("a", 30, TimeUnit.MILLISECONDS);
+            scheduler.schedule("b", 130, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2, TimeUnit.SECONDS), "期望3个任务全部到期，实际为：" + expired);
+            assertEquals(Arrays.asList("a", "b", "c"), expired);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void expireOverdueImmediately() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        HashedWheelScheduler<String> scheduler = new HashedWheelScheduler<>("test", 1, TimeUnit.SECONDS, 8, 1, 100, batch -> latch.countDown());
+        try {
+            // 恢复触发器时已经过期的任务在下一个刻度处理
+            scheduler.schedule("overdue", -5000, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void splitExpiredIntoBatches() throws InterruptedException {
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(25);
+        HashedWheelScheduler<Integer> scheduler = new HashedWheelScheduler<>("test", 10, TimeUnit.MILLISECONDS, 8, 2, 10, batch -> {
+            sizes.add(batch.size());
+            batch.forEach(t -> latch.countDown());
+        });
+        try {
+            for (int i = 0; i < 25; i++) {
+                scheduler.schedule(i, 20, TimeUnit.MILLISECONDS);
+            }
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+            assertTrue(sizes.stream().allMatch(s -> s <= 10), "期望每批不超过10个，实际为：" + sizes);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void discardPendingOnShutdown() throws InterruptedException {
+        List<String> expired = new CopyOnWriteArrayList<>();
+        HashedWheelScheduler<String> scheduler = new HashedWheelScheduler<>("test", 10, TimeUnit.MILLISECONDS, 8, 1, 100, expired::addAll);
+        scheduler.schedule("cancelled", 100, TimeUnit.MILLISECONDS);
+        scheduler.shutdown();
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertTrue(expired.isEmpty());
+    }
+}
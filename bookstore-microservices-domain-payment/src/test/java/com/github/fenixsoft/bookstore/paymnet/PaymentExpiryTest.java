@@ -0,0 +1,143 @@
+package com.github.fenixsoft.bookstore.paymnet;
+
+import com.github.fenixsoft.bookstore.paymnet.application.PaymentApplicationService;
+import com.github.fenixsoft.bookstore.paymnet.domain.Payment;
+import com.github.fenixsoft.bookstore.paymnet.domain.PaymentExpirySweeper;
+import com.github.fenixsoft.bookstore.paymnet.domain.PaymentRepository;
+import com.github.fenixsoft.bookstore.paymnet.domain.PaymentService;
+import com.github.fenixsoft.bookstore.resource.JAXRSResourceBase;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.inject.Inject;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 15:40
+ **/
+class PaymentExpiryTest extends JAXRSResourceBase {
+
+    @Inject
+    private PaymentRepository paymentRepository;
+
+    @Inject
+    private PaymentService paymentService;
+
+    @Inject
+    private PaymentApplicationService paymentApplicationService;
+
+    @Inject
+    private PlatformTransactionManager transactionManager;
+
+    @Inject
+    private AutowireCapableBeanFactory beanFactory;
+
+    /**
+     * 测试环境使用时间轮模式，没有注册清扫器，这里手工创建一个，由测试用例直接调用
+     */
+    private PaymentExpirySweeper createSweeper() {
+        PaymentExpirySweeper sweeper = new PaymentExpirySweeper(transactionManager);
+        beanFactory.autowireBean(sweeper);
+        return sweeper;
+    }
+
+    private Payment createPayment(long expires) {
+        Payment payment = new Payment();
+        payment.setPayId(UUID.randomUUID().toString());
+        payment.setTotalPrice(100d);
+        payment.setExpires(expires);
+        payment.setCreateTime(new Date());
+        payment.setPayState(Payment.State.WAITING);
+        return paymentRepository.save(payment);
+    }
+
+    private Payment.State stateOf(Payment payment) {
+        return paymentRepository.getByPayId(payment.getPayId()).getPayState();
+    }
+
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    @Test
+    void timeoutOnWheel() throws InterruptedException {
+        Payment payment = createPayment(500);
+        paymentService.setupAutoThawedTrigger(payment);
+        await(() -> stateOf(payment) == Payment.State.TIMEOUT);
+        assertEquals(Payment.State.TIMEOUT, stateOf(payment));
+        assertThrows(UnsupportedOperationException.class, () -> paymentApplicationService.accomplishPayment(null, payment.getPayId()));
+    }
+
+    @Test
+    void cancelledBeforeWheelExpires() throws InterruptedException {
+        // 时间轮中的触发器不会被取消，到期时只转换仍在等待支付的支付单
+        Payment payment = createPayment(500);
+        paymentService.setupAutoThawedTrigger(payment);
+        paymentApplicationService.cancelPayment(payment.getPayId());
+        TimeUnit.MILLISECONDS.sleep(2500);
+        assertEquals(Payment.State.CANCEL, stateOf(payment));
+    }
+
+    @Test
+    void sweepOverdue() throws InterruptedException {
+        Payment payment = createPayment(1);
+        TimeUnit.MILLISECONDS.sleep(20);
+        createSweeper().sweep();
+        assertEquals(Payment.State.TIMEOUT, stateOf(payment));
+        assertThrows(UnsupportedOperationException.class, () -> paymentApplicationService.accomplishPayment(null, payment.getPayId()));
+        assertEquals(Payment.State.TIMEOUT, stateOf(payment));
+    }
+
+    @Test
+    void accomplishBeforeSweep() throws InterruptedException {
+        Payment payment = createPayment(1);
+        TimeUnit.MILLISECONDS.sleep(20);
+        paymentApplicationService.accomplishPayment(null, payment.getPayId());
+        createSweeper().sweep();
+        assertEquals(Payment.State.PAYED, stateOf(payment));
+    }
+
+    @Test
+    void sweeperRacingAccomplish() throws Exception {
+        // 清扫与支付同时发生时只能有一方成功，支付单的最终状态与支付的结果一致
+        PaymentExpirySweeper sweeper = createSweeper();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 10; i++) {
+                Payment payment = createPayment(1);
+                TimeUnit.MILLISECONDS.sleep(5);
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?> sweeping = executor.submit(() -> {
+                    start.await();
+                    sweeper.sweep();
+                    return null;
+                });
+                Future<Boolean> paying = executor.submit(() -> {
+                    start.await();
+                    try {
+                        paymentApplicationService.accomplishPayment(null, payment.getPayId());
+                        return true;
+                    } catch (UnsupportedOperationException e) {
+                        return false;
+                    }
+                });
+                start.countDown();
+                sweeping.get(10, TimeUnit.SECONDS);
+                boolean paid = paying.get(10, TimeUnit.SECONDS);
+                assertEquals(paid ? Payment.State.PAYED : Payment.State.TIMEOUT, stateOf(payment));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
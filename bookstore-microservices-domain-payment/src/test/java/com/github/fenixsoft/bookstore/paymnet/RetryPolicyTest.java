@@ -0,0 +1,61 @@
+package com.github.fenixsoft.bookstore.paymnet;
+
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.RetryPolicy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 17:00
+ **/
+class RetryPolicyTest {
+
+    @Test
+    void jitteredBackoffWithinBounds() {
+        RetryPolicy policy = new RetryPolicy(1000, 300000, 10, 0.2, 100);
+        for (int attempts = 1; attempts <= 40; attempts++) {
+            long exponential = Math.min(300000, 1000L << Math.min(attempts - 1, 30));
+            for (int i = 0; i < 1000; i++) {
+                long backoff = policy.backoff(attempts);
+                assertTrue(backoff >= exponential / 2 && backoff <= exponential, "第" + attempts + "次失败后的退避时间越界：" + backoff);
+            }
+        }
+        // 第10次及以后达到上限
+        assertTrue(policy.backoff(10) >= 150000);
+    }
+
+    @Test
+    void exhaustedAfterMaxAttempts() {
+        RetryPolicy policy = new RetryPolicy(1000, 300000, 10, 0.2, 100);
+        assertFalse(policy.isExhausted(9));
+        assertTrue(policy.isExhausted(10));
+    }
+
+    @Test
+    void retryBudget() {
+        RetryPolicy policy = new RetryPolicy(1000, 300000, 10, 0.2, 3);
+        // 初始预算为容量
+        for (int i = 0; i < 3; i++) {
+            assertTrue(policy.tryRetry());
+        }
+        assertFalse(policy.tryRetry());
+        // 每次首次请求存入0.2个令牌，5次请求才够一次重试
+        for (int i = 0; i < 4; i++) {
+            policy.onRequest();
+        }
+        assertFalse(policy.tryRetry());
+        policy.onRequest();
+        assertTrue(policy.tryRetry());
+        assertFalse(policy.tryRetry());
+        // 预算不会超过容量
+        for (int i = 0; i < 1000; i++) {
+            policy.onRequest();
+        }
+        int granted = 0;
+        while (policy.tryRetry()) {
+            granted++;
+        }
+        assertEquals(3, granted);
+    }
+}
@@ -0,0 +1,246 @@
+package com.github.fenixsoft.bookstore.paymnet;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.domain.warehouse.Product;
+import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.dto.Settlement;
+import com.github.fenixsoft.bookstore.paymnet.application.PaymentApplicationService;
+import com.github.fenixsoft.bookstore.paymnet.domain.*;
+import com.github.fenixsoft.bookstore.paymnet.mock.AsyncProductServiceClientMock;
+import com.github.fenixsoft.bookstore.resource.JAXRSResourceBase;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 16:30
+ **/
+class SettlementRelayTest extends JAXRSResourceBase {
+
+    @Inject
+    protected PaymentRepository paymentRepository;
+
+    @Inject
+    protected SettlementOutboxRepository outboxRepository;
+
+    @Inject
+    protected PaymentErrorRepository peRepository;
+
+    @Inject
+    protected SettlementRelay relay;
+
+    @Inject
+    protected AsyncProductServiceClientMock warehouse;
+
+    @Inject
+    private PaymentApplicationService paymentApplicationService;
+
+    @Inject
+    private PaymentErrorRedriver redriver;
+
+    @Inject
+    private PaymentService paymentService;
+
+    /**
+     * 创建一个支付单及其两件商品的发件，state为空时发件尚未设置库存操作
+     */
+    protected Payment createPayment(Payment.State state, DeliveredStatus status, int attempts) {
+        Payment payment = new Payment();
+        payment.setPayId(UUID.randomUUID().toString());
+        payment.setTotalPrice(100d);
+        payment.setExpires(120000L);
+        payment.setCreateTime(new Date());
+        payment.setPayState(state);
+        paymentRepository.save(payment);
+        for (int productId = 1; productId <= 2; productId++) {
+            SettlementOutbox outbox = new SettlementOutbox(payment.getPayId(), productId, 1);
+            if (status != null) {
+                outbox.setStatus(status.name());
+                outbox.setAttempts(attempts);
+                outbox.setNextAttemptTime(new Date());
+            }
+            outboxRepository.save(outbox);
+        }
+        return payment;
+    }
+
+    protected List<SettlementOutbox> outboxOf(Payment payment) {
+        return StreamSupport.stream(outboxRepository.findAll().spliterator(), false)
+                .filter(o -> o.getPayId().equals(payment.getPayId())).collect(Collectors.toList());
+    }
+
+    protected List<PaymentError> errorsOf(Payment payment) {
+        return StreamSupport.stream(peRepository.findAll().spliterator(), false)
+                .filter(e -> e.getPayId().equals(payment.getPayId())).collect(Collectors.toList());
+    }
+
+    protected Payment.State stateOf(Payment payment) {
+        return paymentRepository.getByPayId(payment.getPayId()).getPayState();
+    }
+
+    @Test
+    void relayAfterAccomplish() throws InterruptedException {
+        // 支付成功的事务提交后立即投递，投递成功后删除发件，支付单转为ACCOMPLISHED
+        Payment payment = createPayment(Payment.State.WAITING, null, 0);
+        paymentApplicationService.accomplishPayment(null, payment.getPayId());
+        PaymentExpiryTest.await(() -> stateOf(payment) == Payment.State.ACCOMPLISHED);
+        assertEquals(Payment.State.ACCOMPLISHED, stateOf(payment));
+        assertTrue(outboxOf(payment).isEmpty());
+    }
+
+    @Test
+    void relayDueOutbox() {
+        Payment payment = createPayment(Payment.State.PAYED, DeliveredStatus.DECREASE, 0);
+        relay.relay(payment.getPayId());
+        assertTrue(outboxOf(payment).isEmpty());
+        assertEquals(Payment.State.ACCOMPLISHED, stateOf(payment));
+    }
+
+    @Test
+    void backoffOnFailure() {
+        Payment payment = createPayment(Payment.State.PAYED, DeliveredStatus.DECREASE, 0);
+        warehouse.fail(payment.getPayId());
+        try {
+            long before = System.currentTimeMillis();
+            relay.relay(payment.getPayId());
+            long after = System.currentTimeMillis();
+            // 首次失败后按initial-backoff（测试中为5秒）的一半到全部随机推迟，数据库时间可能截断到秒
+            List<SettlementOutbox> outbox = outboxOf(payment);
+            assertEquals(2, outbox.size());
+            outbox.forEach(o -> {
+                assertEquals(1, o.getAttempts());
+                long next = o.getNextAttemptTime().getTime();
+                assertTrue(next >= before + 2500 - 1000 && next <= after + 5000, "期望推迟2.5~5秒，实际为：" + (next - before));
+            });
+            // 推迟期间不会被再次投递
+            relay.relay(payment.getPayId());
+            outboxOf(payment).forEach(o -> assertEquals(1, o.getAttempts()));
+            assertEquals(Payment.State.PAYED, stateOf(payment));
+        } finally {
+            warehouse.recover(payment.getPayId());
+        }
+        // 恢复后到期再次投递即可完成
+        outboxOf(payment).forEach(o -> {
+            o.setNextAttemptTime(new Date());
+            outboxRepository.save(o);
+        });
+        relay.relay(payment.getPayId());
+        assertTrue(outboxOf(payment).isEmpty());
+        assertEquals(Payment.State.ACCOMPLISHED, stateOf(payment));
+    }
+
+    @Test
+    void deadLetterAfterMaxAttempts() {
+        // 已失败9次，再失败一次即达到上限（10次），转为人工处理，支付单不会被标记为ACCOMPLISHED
+        Payment payment = createPayment(Payment.State.PAYED, DeliveredStatus.DECREASE, 9);
+        warehouse.fail(payment.getPayId());
+        try {
+            relay.relay(payment.getPayId());
+        } finally {
+            warehouse.recover(payment.getPayId());
+        }
+        assertTrue(outboxOf(payment).isEmpty());
+        List<PaymentError> errors = errorsOf(payment);
+        assertEquals(2, errors.size());
+        errors.forEach(e -> assertEquals(DeliveredStatus.DECREASE.name(), e.getStatus()));
+        assertEquals(Payment.State.PAYED, stateOf(payment));
+
+        // 重放后重新计算尝试次数并记录重放次数，投递成功后完成结算
+        redriver.redrive();
+        assertTrue(errorsOf(payment).isEmpty());
+        List<SettlementOutbox> outbox = outboxOf(payment);
+        assertEquals(2, outbox.size());
+        outbox.forEach(o -> {
+            assertEquals(0, o.getAttempts());
+            assertEquals(1, o.getRedrives());
+        });
+        relay.relay(payment.getPayId());
+        assertEquals(Payment.State.ACCOMPLISHED, stateOf(payment));
+    }
+
+    @Test
+    void parkAfterMaxRedrives() {
+        // 重放次数达到上限（3次）的异常留在PaymentError中等待人工处理
+        Payment payment = createPayment(Payment.State.PAYED, DeliveredStatus.DECREASE, 9);
+        outboxOf(payment).forEach(o -> {
+            o.setRedrives(2);
+            outboxRepository.save(o);
+        });
+        warehouse.fail(payment.getPayId());
+        try {
+            relay.relay(payment.getPayId());
+            errorsOf(payment).forEach(e -> assertEquals(2, e.getRedrives()));
+            redriver.redrive();
+            outboxOf(payment).forEach(o -> {
+                o.setAttempts(9);
+                o.setNextAttemptTime(new Date());
+                outboxRepository.save(o);
+            });
+            relay.relay(payment.getPayId());
+        } finally {
+            warehouse.recover(payment.getPayId());
+        }
+        List<PaymentError> errors = errorsOf(payment);
+        assertEquals(2, errors.size());
+        errors.forEach(e -> assertEquals(3, e.getRedrives()));
+        redriver.redrive();
+        assertEquals(2, errorsOf(payment).size());
+        assertTrue(outboxOf(payment).isEmpty());
+    }
+
+    @Test
+    void deadLetterRepeatedProduct() {
+        // 结算单中同一商品出现在多行时合并为一条发件
+        Product product = new Product();
+        product.setPrice(10d);
+        Settlement bill = new Settlement();
+        bill.setItems(Arrays.asList(new Item(1, 1), new Item(2, 2), new Item(1, 1)));
+        bill.productMap = new HashMap<>();
+        bill.productMap.put(1, product);
+        bill.productMap.put(2, product);
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("icyfenix", null));
+        Payment payment;
+        try {
+            payment = paymentService.producePayment(bill);
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        List<SettlementOutbox> outbox = outboxOf(payment);
+        assertEquals(2, outbox.size());
+        assertEquals(3, outbox.stream().filter(o -> o.getProductId() == 1).findFirst().get().getAmount());
+
+        // 投递持续失败直至上限后，每件商品只转为一条人工处理记录，不会违反唯一索引而一直留在发件箱中
+        Payment payed = paymentRepository.getByPayId(payment.getPayId());
+        payed.setPayState(Payment.State.PAYED);
+        paymentRepository.save(payed);
+        outbox.forEach(o -> {
+            o.setStatus(DeliveredStatus.DECREASE.name());
+            o.setAttempts(9);
+            o.setNextAttemptTime(new Date());
+            outboxRepository.save(o);
+        });
+        warehouse.fail(payment.getPayId());
+        try {
+            relay.relay(payment.getPayId());
+        } finally {
+            warehouse.recover(payment.getPayId());
+        }
+        assertTrue(outboxOf(payment).isEmpty());
+        List<PaymentError> errors = errorsOf(payment);
+        assertEquals(2, errors.size());
+        assertEquals(3, errors.stream().filter(e -> e.getProductId() == 1).findFirst().get().getAmount());
+        assertEquals(Payment.State.PAYED, stateOf(payment));
+    }
+}
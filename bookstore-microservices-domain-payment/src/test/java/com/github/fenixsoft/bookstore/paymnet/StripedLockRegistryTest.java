@@ -0,0 +1,77 @@
+package com.github.fenixsoft.bookstore.paymnet;
+
+import com.github.fenixsoft.bookstore.paymnet.infrastructure.StripedLockRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 16:05
+ **/
+class StripedLockRegistryTest {
+
+    private int counter;
+
+    @Test
+    void mutualExclusionForSameKey() throws InterruptedException {
+        StripedLockRegistry locks = new StripedLockRegistry("test.locks", 16, new SimpleMeterRegistry());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    locks.execute("payId", () -> counter++);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(8000, counter);
+    }
+
+    @Test
+    void recordContention() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StripedLockRegistry locks = new StripedLockRegistry("test.locks", 16, registry);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> holder = executor.submit(() -> locks.execute("payId", () -> {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            held.await();
+            new Thread(() -> {
+                sleep(100);
+                release.countDown();
+            }).start();
+            // 持有者释放之前，同一个键的调用者会进入等待，并记录一次竞争
+            assertEquals("done", locks.execute("payId", () -> "done"));
+            holder.get(5, TimeUnit.SECONDS);
+            assertEquals(1, registry.counter("test.locks.contended").count());
+            assertTrue(registry.timer("test.locks.wait").totalTime(TimeUnit.MILLISECONDS) > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.fenixsoft.bookstore.paymnet.mock;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
+import com.github.fenixsoft.bookstore.paymnet.domain.client.AsyncProductServiceClient;
+import com.github.fenixsoft.bookstore.paymnet.domain.client.ProductServiceClient;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 17:02
+ **/
+@Named
+public class AsyncProductServiceClientMock implements AsyncProductServiceClient {
+
+    @Inject
+    private ProductServiceClient delegate;
+
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 使指定支付单的库存调整调用失败，模拟仓库服务不可用
+     */
+    public void fail(String payId) {
+        failing.add(payId);
+    }
+
+    public void recover(String payId) {
+        failing.remove(payId);
+    }
+
+    @Override
+    public CompletableFuture<List<CodedMessage>> setDeliveredStatus(DeliveredStatus status, String payId, List<Item> items) {
+        if (failing.contains(payId)) {
+            CompletableFuture<List<CodedMessage>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("warehouse unavailable"));
+            return failed;
+        }
+        return CompletableFuture.completedFuture(delegate.setDeliveredStatus(status, payId, items));
+    }
+}
@@ -10,6 +10,8 @@ import com.github.fenixsoft.bookstore.paymnet.domain.client.ProductServiceClient
 import javax.inject.Named;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 /**
  * @author icyfenix@gmail.com
@@ -47,6 +49,11 @@ public class ProductServiceClientMock implements ProductServiceClient {
         return null;
     }
 
+    @Override
+    public List<CodedMessage> setDeliveredStatus(DeliveredStatus status, String payId, List<Item> items) {
+        return items.stream().map(i -> new CodedMessage(CodedMessage.CODE_SUCCESS, null)).collect(Collectors.toList());
+    }
+
     @Override
     public Stockpile queryStockpile(Integer productId) {
         if (productId == 1) {
@@ -60,4 +67,9 @@ public class ProductServiceClientMock implements ProductServiceClient {
         }
     }
 
+    @Override
+    public List<Stockpile> queryStockpiles(Collection<Integer> productIds) {
+        return productIds.stream().map(this::queryStockpile).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
 }
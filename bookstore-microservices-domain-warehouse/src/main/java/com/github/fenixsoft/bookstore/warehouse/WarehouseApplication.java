@@ -22,9 +22,11 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 
 @EnableCaching
+@EnableScheduling
 @EnableDiscoveryClient
 @SpringBootApplication(scanBasePackages = {"com.github.fenixsoft.bookstore"})
 public class WarehouseApplication {
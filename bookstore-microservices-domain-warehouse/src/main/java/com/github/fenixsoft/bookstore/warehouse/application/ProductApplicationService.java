@@ -20,10 +20,12 @@ package com.github.fenixsoft.bookstore.warehouse.application;
 
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.warehouse.domain.ProductService;
+import com.github.fenixsoft.bookstore.warehouse.domain.ProductSummary;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.transaction.Transactional;
+import java.util.List;
 
 /**
  * 产品的应用服务接口
@@ -45,6 +47,27 @@ public class ProductApplicationService {
         return service.getAllProducts();
     }
 
+    /**
+     * 按主键游标分页获取货物信息
+     */
+    public List<Product> getProducts(Integer after, int limit) {
+        return service.getProducts(after, limit);
+    }
+
+    /**
+     * 按主键游标分页获取货物摘要
+     */
+    public List<ProductSummary> getProductSummaries(Integer after, int limit) {
+        return service.getProductSummaries(after, limit);
+    }
+
+    /**
+     * 按关键字全文检索货物摘要
+     */
+    public List<ProductSummary> searchProducts(String query, int offset, int limit) {
+        return service.searchProducts(query, offset, limit);
+    }
+
     /**
      * 获取仓库中指定的货物信息
      */
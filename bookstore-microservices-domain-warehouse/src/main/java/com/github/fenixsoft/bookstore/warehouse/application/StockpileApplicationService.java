@@ -4,16 +4,20 @@ import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
 import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
 import com.github.fenixsoft.bookstore.infrastructure.jaxrs.IdempotenceException;
 import com.github.fenixsoft.bookstore.warehouse.domain.PaymentStockpile;
-import com.github.fenixsoft.bookstore.warehouse.domain.PaymentStockpileRepository;
+import com.github.fenixsoft.bookstore.warehouse.domain.ProductService;
+import com.github.fenixsoft.bookstore.warehouse.domain.StockpileAvailability;
+import com.github.fenixsoft.bookstore.warehouse.domain.StockpileReservationEngine;
 import com.github.fenixsoft.bookstore.warehouse.domain.StockpileService;
-import org.springframework.dao.DataIntegrityViolationException;
+import com.github.fenixsoft.bookstore.warehouse.infrastructure.IdempotencyKeyStore;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.persistence.EntityNotFoundException;
 import javax.transaction.Transactional;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -30,33 +34,73 @@ public class StockpileApplicationService {
     private StockpileService stockpileService;
 
     @Inject
-    private PaymentStockpileRepository paymentStockpileRepository;
+    private ProductService productService;
+
+    @Inject
+    private IdempotencyKeyStore idempotencyKeys;
+
+    @Inject
+    private StockpileAvailability availability;
+
+    /**
+     * 库存预留引擎，仅在配置了bookstore.warehouse.reservation.enabled时启用
+     */
+    @Inject
+    private Optional<StockpileReservationEngine> reservation;
 
     /**
      * 根据产品查询库存
      */
     public Stockpile getStockpile(Integer productId) {
-        return stockpileService.getByProductId(productId);
+        return reservation.map(r -> r.get(productId)).orElseGet(() -> stockpileService.getByProductId(productId));
+    }
+
+    /**
+     * 根据多个产品批量查询库存
+     */
+    public List<Stockpile> getStockpiles(Collection<Integer> productIds) {
+        if (reservation.isPresent()) {
+            List<Stockpile> stocks = new ArrayList<>();
+            productIds.forEach(productId -> {
+                try {
+                    stocks.add(reservation.get().get(productId));
+                } catch (EntityNotFoundException e) {
+                    // 不存在的产品不出现在结果中，与数据库查询的行为保持一致
+                }
+            });
+            return stocks;
+        }
+        return stockpileService.getByProductIds(productIds);
+    }
+
+    /**
+     * 批量查询库存可用量，数据来自内存中的读模型，可能略滞后于数据库
+     */
+    public List<Stockpile> getAvailabilities(Collection<Integer> productIds) {
+        return availability.get(productIds);
     }
 
     /**
      * 将指定的产品库存调整为指定数额
      */
     public void setStockpileAmountByProductId(Integer productId, Integer amount) {
-        stockpileService.set(productId, amount);
+        if (reservation.isPresent()) {
+            reservation.get().set(productId, amount);
+        } else {
+            stockpileService.set(productId, amount);
+        }
     }
 
     /**
      * 调整商品出库状态
      */
     public void setDeliveredStatus(Integer productId, DeliveredStatus status, Integer amount, String payId) {
-        try {
-            // 唯一主键保证幂等
-            paymentStockpileRepository.save(new PaymentStockpile(payId, productId, status.name()));
-        } catch (DataIntegrityViolationException e) {
-            String msg = String.format("PaymentStockpile Idempotent, payId: %s, productId: %s, status: %s", payId, productId, status);
-            throw new IdempotenceException(msg);
+        if (reservation.isPresent()) {
+            reservation.get().reserve(status, productId, amount, payId);
+            return;
         }
+        // 幂等键存储先在内存中判断，数据库的唯一主键作为最终保证
+        idempotencyKeys.save(new PaymentStockpile(payId, productId, status.name(), amount));
         switch (status) {
             case DECREASE:
                 stockpileService.decrease(productId, amount);
@@ -73,13 +117,65 @@ public class StockpileApplicationService {
         }
     }
 
+    /**
+     * 批量调整同一支付单中多件商品的出库状态，返回每件商品的调整结果
+     * <p>
+     * 以一次查询判断哪些商品已经调整过（幂等），其余商品的幂等记录与库存调整在同一个事务中批量写入。
+     * 已调整过的商品视为成功，找不到库存或数量不足的商品返回失败，不影响其他商品；两种库存模式下均是每件商品一个结果
+     */
+    public List<CodedMessage> setDeliveredStatus(String payId, DeliveredStatus status, List<Item> items) {
+        // 同一商品出现在多行中时合并数量，与冻结时的处理一致，否则只会解冻或扣减第一行的数量
+        Map<Integer, Integer> merged = new LinkedHashMap<>();
+        items.forEach(i -> merged.merge(i.getProductId(), i.getAmount(), Integer::sum));
+        if (reservation.isPresent()) {
+            Map<Integer, CodedMessage> answers = new HashMap<>();
+            merged.forEach((productId, amount) -> {
+                try {
+                    reservation.get().reserve(status, productId, amount, payId);
+                    answers.put(productId, new CodedMessage(CodedMessage.CODE_SUCCESS, null));
+                } catch (IdempotenceException e) {
+                    answers.put(productId, new CodedMessage(CodedMessage.CODE_SUCCESS, e.getMessage()));
+                } catch (EntityNotFoundException e) {
+                    answers.put(productId, new CodedMessage(CodedMessage.CODE_DEFAULT_FAILURE, "商品库存不存在：" + productId));
+                } catch (IllegalStateException e) {
+                    // 库存或冻结数量不足，预留失败时不会写入日志，不影响其他商品
+                    answers.put(productId, new CodedMessage(CodedMessage.CODE_DEFAULT_FAILURE, e.getMessage()));
+                }
+            });
+            return items.stream().map(i -> answers.get(i.getProductId())).collect(Collectors.toList());
+        }
+        Set<Integer> done = idempotencyKeys.findDone(payId, status.name(), merged.keySet());
+        Map<Integer, Integer> pending = new LinkedHashMap<>(merged);
+        pending.keySet().removeAll(done);
+        Set<Integer> adjusted = pending.isEmpty() ? Collections.emptySet() : stockpileService.adjust(status, pending);
+        // 唯一主键保证并发请求之间的幂等，冲突时整个事务回滚，由调用方重试
+        idempotencyKeys.saveAll(adjusted.stream()
+                .map(productId -> new PaymentStockpile(payId, productId, status.name(), pending.get(productId)))
+                .collect(Collectors.toList()));
+        // 每件商品只有一个结果，同一商品的多行返回相同的结果，调用方据此判断整件商品是否已调整
+        Map<Integer, CodedMessage> answers = new HashMap<>();
+        merged.keySet().forEach(productId -> {
+            if (done.contains(productId)) {
+                String msg = String.format("PaymentStockpile Idempotent, payId: %s, productId: %s, status: %s", payId, productId, status);
+                answers.put(productId, new CodedMessage(CodedMessage.CODE_SUCCESS, msg));
+            } else if (adjusted.contains(productId)) {
+                answers.put(productId, new CodedMessage(CodedMessage.CODE_SUCCESS, null));
+            } else {
+                answers.put(productId, new CodedMessage(CodedMessage.CODE_DEFAULT_FAILURE, "商品库存不存在或数量不足：" + productId));
+            }
+        });
+        return items.stream().map(i -> answers.get(i.getProductId())).collect(Collectors.toList());
+    }
+
     /**
      * 冻结库存并填充商品信息
      */
     public List<Product> frozenAndReplenishProducts(List<Item> items) {
-        return items.stream()
-                .map(i -> stockpileService.frozen(i.getProductId(), i.getAmount()))
-                .collect(Collectors.toList());
+        if (reservation.isPresent()) {
+            items.forEach(i -> reservation.get().reserve(DeliveredStatus.FROZEN, i.getProductId(), i.getAmount(), null));
+            return productService.getProducts(items);
+        }
+        return stockpileService.frozen(items);
     }
 
 }
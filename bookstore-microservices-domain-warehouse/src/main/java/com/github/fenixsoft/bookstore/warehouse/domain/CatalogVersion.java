@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.BaseEntity;
+
+import javax.persistence.Entity;
+
+/**
+ * 商品目录版本号
+ * <p>
+ * 表中只有一行，商品每次被创建、修改或删除时版本号加一，各个仓库服务节点据此判断本地缓存的商品是否已经过时
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/12 9:40
+ **/
+@Entity
+public class CatalogVersion extends BaseEntity {
+
+    private Long version;
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * 商品目录版本号数据仓库
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/12 9:42
+ **/
+public interface CatalogVersionRepository extends CrudRepository<CatalogVersion, Integer> {
+
+    @Query("select v.version from CatalogVersion v where v.id = 1")
+    Long current();
+
+    @Modifying
+    @Query("update CatalogVersion v set v.version = v.version + 1 where v.id = 1")
+    int increase();
+
+}
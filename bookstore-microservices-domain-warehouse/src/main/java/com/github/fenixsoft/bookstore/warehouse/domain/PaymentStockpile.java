@@ -21,9 +21,14 @@ package com.github.fenixsoft.bookstore.warehouse.domain;
 import com.github.fenixsoft.bookstore.domain.BaseEntity;
 
 import javax.persistence.Entity;
+import java.util.Date;
 
 /**
  * 订单库存操作模型
+ * <p>
+ * 该记录以唯一主键保证库存操作的幂等；启用库存预留引擎时，它同时是库存变动的预写日志：
+ * 变动数量记录在amount中，applied标志该变动是否已被写回到库存表。
+ * 超过保留期限的已写回记录会被转移到payment_stockpile_archive表，见{@link com.github.fenixsoft.bookstore.warehouse.infrastructure.IdempotencyKeyStore}
  *
  * @author icyfenix@gmail.com
  * @date 2020/3/12 16:34
@@ -33,6 +38,10 @@ public class PaymentStockpile extends BaseEntity {
     private String payId;
     private Integer productId;
     private String stockOp;
+    private Integer amount;
+    private Boolean applied = true;
+
+    private Date createTime = new Date();
 
     public PaymentStockpile() {
     }
@@ -43,6 +52,11 @@ public class PaymentStockpile extends BaseEntity {
         this.stockOp = stockOp;
     }
 
+    public PaymentStockpile(String payId, Integer productId, String stockOp, Integer amount) {
+        this(payId, productId, stockOp);
+        this.amount = amount;
+    }
+
     public String getStockOp() {
         return stockOp;
     }
@@ -66,4 +80,28 @@ public class PaymentStockpile extends BaseEntity {
     public void setProductId(Integer productId) {
         this.productId = productId;
     }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public Boolean getApplied() {
+        return applied;
+    }
+
+    public void setApplied(Boolean applied) {
+        this.applied = applied;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public void setCreateTime(Date createTime) {
+        this.createTime = createTime;
+    }
 }
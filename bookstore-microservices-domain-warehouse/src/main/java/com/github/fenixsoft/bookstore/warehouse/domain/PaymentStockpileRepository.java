@@ -18,7 +18,15 @@
 
 package com.github.fenixsoft.bookstore.warehouse.domain;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 
 /**
  * 库存数据仓库
@@ -28,5 +36,54 @@ import org.springframework.data.repository.CrudRepository;
  **/
 public interface PaymentStockpileRepository extends CrudRepository<PaymentStockpile, Integer> {
 
+    /**
+     * 查询支付单已执行过的某种库存操作，用于批量调整库存时的幂等判断
+     */
+    List<PaymentStockpile> findByPayIdAndStockOp(String payId, String stockOp);
+
+    /**
+     * 查询尚未写回库存表的库存日志，用于库存预留引擎崩溃后的恢复
+     */
+    List<PaymentStockpile> findByAppliedFalseOrderByIdAsc();
+
+    /**
+     * 将指定的库存日志标记为已写回库存表
+     */
+    @Modifying
+    @Query("update PaymentStockpile p set p.applied = true where p.id in :ids")
+    int markApplied(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * 判断某个库存操作是否已执行过
+     */
+    boolean existsByPayIdAndProductIdAndStockOp(String payId, Integer productId, String stockOp);
+
+    /**
+     * 按主键游标分页查询幂等键，每行为[id, payId, productId, stockOp]，用于建立布隆过滤器
+     */
+    @Query("select p.id, p.payId, p.productId, p.stockOp from PaymentStockpile p where p.id > :after order by p.id")
+    List<Object[]> findKeysAfter(@Param("after") Integer after, Pageable pageable);
+
+    /**
+     * 将早于截止时间的已写回记录复制到归档表
+     */
+    @Modifying
+    @Query(value = "insert into payment_stockpile_archive (id, pay_id, product_id, stock_op, amount, create_time) " +
+            "select id, pay_id, product_id, stock_op, amount, create_time from payment_stockpile " +
+            "where applied = true and create_time < :deadline and id <= :maxId", nativeQuery = true)
+    int archive(@Param("deadline") Date deadline, @Param("maxId") Integer maxId);
+
+    /**
+     * 删除早于截止时间的已写回记录，条件须与archive一致
+     */
+    @Modifying
+    @Query("delete from PaymentStockpile p where p.applied = true and p.createTime < :deadline and p.id <= :maxId")
+    int purge(@Param("deadline") Date deadline, @Param("maxId") Integer maxId);
+
+    /**
+     * 查询早于截止时间的最大主键，限定一次归档的范围
+     */
+    @Query("select max(p.id) from PaymentStockpile p where p.createTime < :deadline")
+    Integer findMaxIdBefore(@Param("deadline") Date deadline);
 
 }
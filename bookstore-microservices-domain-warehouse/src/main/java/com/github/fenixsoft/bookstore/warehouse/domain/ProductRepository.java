@@ -19,9 +19,14 @@
 package com.github.fenixsoft.bookstore.warehouse.domain;
 
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * 商品对象数据仓库
@@ -31,6 +36,32 @@ import java.util.Collection;
  **/
 public interface ProductRepository extends CrudRepository<Product, Integer> {
 
-    Collection<Product> findByIdIn(Collection<Integer> ids);
+    /**
+     * 以一条关联查询取出全部商品及其规格
+     */
+    @Override
+    @EntityGraph(Product.SPECIFICATIONS_GRAPH)
+    @Query("select distinct p from Product p")
+    List<Product> findAll();
+
+    /**
+     * 以一条关联查询取出指定的商品及其规格
+     */
+    @EntityGraph(Product.SPECIFICATIONS_GRAPH)
+    @Query("select distinct p from Product p where p.id in :ids")
+    Collection<Product> findByIdIn(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * 按主键游标分页：取出主键大于after的前若干个商品ID，无论翻到第几页都只需扫描一页的数据
+     * 分页与集合的关联查询不能在同一条语句中完成（Hibernate会退化为在内存中分页），所以先查ID，再以findByIdIn取出商品
+     */
+    @Query("select p.id from Product p where p.id > :after order by p.id")
+    List<Integer> findIdsAfter(@Param("after") Integer after, Pageable pageable);
+
+    /**
+     * 按主键游标分页查询商品摘要
+     */
+    @Query("select new com.github.fenixsoft.bookstore.warehouse.domain.ProductSummary(p.id, p.title, p.price, p.rate, p.cover) from Product p where p.id > :after order by p.id")
+    List<ProductSummary> findSummaries(@Param("after") Integer after, Pageable pageable);
 
 }
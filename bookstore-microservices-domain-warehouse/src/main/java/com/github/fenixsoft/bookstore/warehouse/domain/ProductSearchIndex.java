@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 商品全文检索的倒排索引
+ * <p>
+ * 索引商品的标题、描述（去除HTML标签）与规格值，保存在当前节点的内存中，启动时从数据库全量建立，商品变动时增量更新。
+ * 分词：连续的中日韩文字切分为单字与相邻两字（二元组），连续的字母数字作为一个词并转为小写，因此无需词典也能匹配中文。
+ * 排序：TF-IDF，各字段的词频按权重累加（标题3、规格2、描述1），词越稀有贡献越大；命中二元组的商品自然排在只命中单字的商品之前
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/13 15:40
+ **/
+@Named
+public class ProductSearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ProductSearchIndex.class);
+
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+
+    private static final float TITLE_WEIGHT = 3;
+    private static final float SPECIFICATION_WEIGHT = 2;
+    private static final float DESCRIPTION_WEIGHT = 1;
+
+    @Inject
+    private ProductRepository repository;
+
+    /**
+     * 词 -> 商品ID -> 加权词频
+     */
+    private final Map<String, Map<Integer, Float>> postings = new HashMap<>();
+
+    /**
+     * 商品ID -> 商品摘要，检索结果直接由此返回，无需再访问数据库
+     */
+    private final Map<Integer, ProductSummary> documents = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        List<Product> products = repository.findAll();
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            documents.clear();
+            products.forEach(this::doPut);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("商品检索索引建立完成，商品数：{}，词数：{}", products.size(), postings.size());
+    }
+
+    /**
+     * 加入或更新商品的索引
+     */
+    public void put(Product product) {
+        lock.writeLock().lock();
+        try {
+            doRemove(product.getId());
+            doPut(product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 移除商品的索引
+     */
+    public void remove(Integer productId) {
+        lock.writeLock().lock();
+        try {
+            doRemove(productId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 检索商品，按相关度从高到低排序，返回第offset个开始的limit个结果
+     */
+    public List<ProductSummary> search(String query, int offset, int limit) {
+        Set<String> terms = new HashSet<>(tokenize(query));
+        lock.readLock().lock();
+        try {
+            Map<Integer, Float> scores = new HashMap<>();
+            int total = documents.size();
+            terms.forEach(term -> {
+                Map<Integer, Float> posting = postings.get(term);
+                if (posting != null) {
+                    double idf = Math.log(1 + (double) total / posting.size());
+                    posting.forEach((id, tf) -> scores.merge(id, (float) (tf * idf), Float::sum));
+                }
+            });
+            return scores.entrySet().stream()
+                    .sorted(Map.Entry.<Integer, Float>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .skip(offset)
+                    .limit(limit)
+                    .map(e -> documents.get(e.getKey()))
+                    .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void doPut(Product product) {
+        Map<String, Float> frequencies = new HashMap<>();
+        count(frequencies, product.getTitle(), TITLE_WEIGHT);
+        Optional.ofNullable(product.getSpecifications()).ifPresent(specs -> specs.forEach(s -> count(frequencies, s.getValue(), SPECIFICATION_WEIGHT)));
+        count(frequencies, product.getDescription() == null ? null : HTML_TAG.matcher(product.getDescription()).replaceAll(" "), DESCRIPTION_WEIGHT);
+        frequencies.forEach((term, tf) -> postings.computeIfAbsent(term, t -> new HashMap<>()).put(product.getId(), tf));
+        documents.put(product.getId(), new ProductSummary(product.getId(), product.getTitle(), product.getPrice(), product.getRate(), product.getCover()));
+    }
+
+    private void doRemove(Integer productId) {
+        if (documents.remove(productId) == null) {
+            return;
+        }
+        Iterator<Map<Integer, Float>> iterator = postings.values().iterator();
+        while (iterator.hasNext()) {
+            Map<Integer, Float> posting = iterator.next();
+            if (posting.remove(productId) != null && posting.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void count(Map<String, Float> frequencies, String text, float weight) {
+        tokenize(text).forEach(term -> frequencies.merge(term, weight, Float::sum));
+    }
+
+    /**
+     * 分词：中日韩文字输出单字与二元组，字母数字输出整词（小写），其他字符作为分隔符
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder word = new StringBuilder();
+        int previousCjk = -1;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (isCjk(cp)) {
+                flush(word, tokens);
+                tokens.add(new String(Character.toChars(cp)));
+                if (previousCjk != -1) {
+                    tokens.add(new String(Character.toChars(previousCjk)) + new String(Character.toChars(cp)));
+                }
+                previousCjk = cp;
+            } else if (Character.isLetterOrDigit(cp)) {
+                word.appendCodePoint(Character.toLowerCase(cp));
+                previousCjk = -1;
+            } else {
+                flush(word, tokens);
+                previousCjk = -1;
+            }
+        }
+        flush(word, tokens);
+        return tokens;
+    }
+
+    private static void flush(StringBuilder word, List<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -21,10 +21,20 @@ package com.github.fenixsoft.bookstore.warehouse.domain;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.dto.Item;
 import com.github.fenixsoft.bookstore.dto.Settlement;
+import org.hibernate.Hibernate;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.persistence.EntityNotFoundException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -40,6 +50,12 @@ public class ProductService {
     @Inject
     private ProductRepository repository;
 
+    @Inject
+    private CatalogVersionRepository versionRepository;
+
+    @Inject
+    private ProductSearchIndex searchIndex;
+
     /**
      * 根据结算单中货物的ID，填充货物的完整信息到结算单对象上
      */
@@ -48,6 +64,17 @@ public class ProductService {
         bill.productMap = repository.findByIdIn(ids).stream().collect(Collectors.toMap(Product::getId, Function.identity()));
     }
 
+    /**
+     * 按清单顺序获取清单中各项货物的信息
+     */
+    public List<Product> getProducts(Collection<Item> items) {
+        List<Integer> ids = items.stream().map(Item::getProductId).collect(Collectors.toList());
+        Map<Integer, Product> products = repository.findByIdIn(ids).stream().collect(Collectors.toMap(Product::getId, Function.identity()));
+        return ids.stream()
+                .map(id -> Optional.ofNullable(products.get(id)).orElseThrow(() -> new EntityNotFoundException(id.toString())))
+                .collect(Collectors.toList());
+    }
+
     /**
      * 获取仓库中所有的货物信息
      */
@@ -55,25 +82,79 @@ public class ProductService {
         return repository.findAll();
     }
 
+    /**
+     * 按主键游标分页获取货物信息，after为上一页最后一个商品的ID，为空时从头开始
+     */
+    public List<Product> getProducts(Integer after, int limit) {
+        List<Integer> ids = repository.findIdsAfter(Optional.ofNullable(after).orElse(0), PageRequest.of(0, limit));
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return repository.findByIdIn(ids).stream().sorted(Comparator.comparing(Product::getId)).collect(Collectors.toList());
+    }
+
+    /**
+     * 按主键游标分页获取货物摘要
+     */
+    public List<ProductSummary> getProductSummaries(Integer after, int limit) {
+        return repository.findSummaries(Optional.ofNullable(after).orElse(0), PageRequest.of(0, limit));
+    }
+
+    /**
+     * 按关键字全文检索货物摘要，按相关度排序
+     */
+    public List<ProductSummary> searchProducts(String query, int offset, int limit) {
+        return searchIndex.search(query, offset, limit);
+    }
+
     /**
      * 获取仓库中指定的货物信息
      */
     public Product getProduct(Integer id) {
-        return repository.findById(id).orElse(null);
+        Product product = repository.findById(id).orElse(null);
+        if (product != null) {
+            // 规格是延迟加载的，需在事务结束（序列化）之前取出
+            Hibernate.initialize(product.getSpecifications());
+        }
+        return product;
     }
 
     /**
      * 创建或者更新产品信息
+     * 同时增加商品目录的版本号，通知所有节点商品缓存已过时，事务提交后更新本节点的检索索引
      */
     public Product saveProduct(Product product) {
-        return repository.save(product);
+        versionRepository.increase();
+        Product saved = repository.save(product);
+        Hibernate.initialize(saved.getSpecifications());
+        afterCommit(() -> searchIndex.put(saved));
+        return saved;
     }
 
     /**
      * 删除指定产品
+     * 同时增加商品目录的版本号，通知所有节点商品缓存已过时，事务提交后更新本节点的检索索引
      */
     public void removeProduct(Integer id) {
+        versionRepository.increase();
         repository.deleteById(id);
+        afterCommit(() -> searchIndex.remove(id));
+    }
+
+    /**
+     * 索引只应反映已提交的数据，事务回滚时不做修改
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 
 }
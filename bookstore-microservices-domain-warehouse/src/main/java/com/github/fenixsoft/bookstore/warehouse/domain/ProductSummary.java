@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+/**
+ * 商品摘要
+ * <p>
+ * 商品列表只需要展示的字段，不包含长文本的描述与规格，由查询直接投影生成，不经过实体加载
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/12 14:30
+ **/
+public class ProductSummary {
+
+    private Integer id;
+    private String title;
+    private Double price;
+    private Float rate;
+    private String cover;
+
+    public ProductSummary() {
+    }
+
+    public ProductSummary(Integer id, String title, Double price, Float rate, String cover) {
+        this.id = id;
+        this.title = title;
+        this.price = price;
+        this.rate = rate;
+        this.cover = cover;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public Double getPrice() {
+        return price;
+    }
+
+    public void setPrice(Double price) {
+        this.price = price;
+    }
+
+    public Float getRate() {
+        return rate;
+    }
+
+    public void setRate(Float rate) {
+        this.rate = rate;
+    }
+
+    public String getCover() {
+        return cover;
+    }
+
+    public void setCover(String cover) {
+        this.cover = cover;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 库存可用量的读模型
+ * <p>
+ * 商品列表页需要频繁地批量查询库存，若每次都经过JPA加载stockpile记录，这些只读流量会与冻结、扣减等事务争抢同一批行。
+ * 这里在内存中维护一张以商品ID为键的可用量表，库存领域服务每次变动提交后写入最新数值或变动量，并定期与数据库全量校对，
+ * 修正可能遗漏的变动（如其他节点的修改、并发提交的先后顺序颠倒等），因此查询结果允许有不超过一个校对周期的滞后。
+ * <p>
+ * 表采用开放寻址法，键为int、值为库存与冻结数量压缩成的long，避免装箱对象与哈希桶节点；读取以乐观读锁进行，不阻塞也不被写入阻塞
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/13 17:20
+ **/
+@Named
+public class StockpileAvailability {
+
+    private static final Logger log = LoggerFactory.getLogger(StockpileAvailability.class);
+
+    private static final int EMPTY = 0;
+
+    @Inject
+    private StockpileRepository repository;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * 商品ID，EMPTY表示空槽（商品ID由1开始，不会是0）
+     */
+    private int[] keys = new int[64];
+
+    /**
+     * 高32位为库存数量，低32位为冻结数量
+     */
+    private long[] values = new long[64];
+
+    private int size;
+
+    /**
+     * 从数据库全量校对
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${bookstore.warehouse.availability.reconcile-interval:30000}")
+    public void reconcile() {
+        List<Object[]> levels = repository.findLevels();
+        int capacity = Integer.highestOneBit(Math.max(levels.size(), 32) * 2) * 2;
+        int[] newKeys = new int[capacity];
+        long[] newValues = new long[capacity];
+        levels.forEach(l -> insert(newKeys, newValues, (Integer) l[0], pack((Integer) l[1], (Integer) l[2])));
+        long stamp = lock.writeLock();
+        try {
+            keys = newKeys;
+            values = newValues;
+            size = levels.size();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        log.debug("库存可用量已与数据库校对，商品数：{}", levels.size());
+    }
+
+    /**
+     * 记录商品库存的最新数值，处于事务中时在事务提交后才生效
+     */
+    public void update(Stockpile stock) {
+        update(stock.getId(), stock.getAmount(), stock.getFrozen());
+    }
+
+    /**
+     * 记录商品库存的最新数值，处于事务中时在事务提交后才生效
+     */
+    public void update(Integer productId, int amount, int frozen) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    put(productId, amount, frozen);
+                }
+            });
+        } else {
+            put(productId, amount, frozen);
+        }
+    }
+
+    /**
+     * 记录商品库存的变动量，处于事务中时在事务提交后才生效
+     * 变动量与提交顺序无关，不会像写入数值那样被先提交的旧值覆盖；表中还没有该商品时忽略，留待校对时加入
+     */
+    public void apply(Integer productId, int amountDelta, int frozenDelta) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    add(productId, amountDelta, frozenDelta);
+                }
+            });
+        } else {
+            add(productId, amountDelta, frozenDelta);
+        }
+    }
+
+    /**
+     * 批量查询库存可用量，不存在的商品不出现在结果中；productIds为空时返回全部商品
+     */
+    public List<Stockpile> get(Collection<Integer> productIds) {
+        long stamp = lock.tryOptimisticRead();
+        List<Stockpile> result = read(productIds);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = read(productIds);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    private List<Stockpile> read(Collection<Integer> productIds) {
+        int[] currentKeys = keys;
+        long[] currentValues = values;
+        List<Stockpile> result = new ArrayList<>();
+        // 乐观读时数组可能正被替换，长度不一致时直接返回，由validate失败后重读
+        if (currentKeys.length != currentValues.length) {
+            return result;
+        }
+        if (productIds == null || productIds.isEmpty()) {
+            for (int i = 0; i < currentKeys.length; i++) {
+                if (currentKeys[i] != EMPTY) {
+                    result.add(toStockpile(currentKeys[i], currentValues[i]));
+                }
+            }
+        } else {
+            productIds.forEach(id -> {
+                int slot = find(currentKeys, id);
+                if (slot >= 0) {
+                    result.add(toStockpile(id, currentValues[slot]));
+                }
+            });
+        }
+        return result;
+    }
+
+    private void put(int productId, int amount, int frozen) {
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * 2 > keys.length) {
+                int[] newKeys = new int[keys.length * 2];
+                long[] newValues = new long[values.length * 2];
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != EMPTY) {
+                        insert(newKeys, newValues, keys[i], values[i]);
+                    }
+                }
+                keys = newKeys;
+                values = newValues;
+            }
+            if (insert(keys, values, productId, pack(amount, frozen))) {
+                size++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void add(int productId, int amountDelta, int frozenDelta) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(keys, productId);
+            if (slot >= 0) {
+                long value = values[slot];
+                values[slot] = pack((int) (value >>> 32) + amountDelta, (int) value + frozenDelta);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 插入或覆盖，返回是否新增了键
+     */
+    private static boolean insert(int[] keys, long[] values, int key, long value) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        boolean added = keys[slot] == EMPTY;
+        keys[slot] = key;
+        values[slot] = value;
+        return added;
+    }
+
+    private static int find(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        // 探测步数以表长为上限，防止乐观读到不完整的表时死循环
+        for (int probe = 0; probe < keys.length; probe++) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pack(int amount, int frozen) {
+        return ((long) amount << 32) | (frozen & 0xFFFFFFFFL);
+    }
+
+    private static Stockpile toStockpile(int productId, long value) {
+        Stockpile stock = new Stockpile();
+        stock.setId(productId);
+        stock.setAmount((int) (value >>> 32));
+        stock.setFrozen((int) value);
+        return stock;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+
+import java.util.Map;
+
+/**
+ * 库存的批量条件更新
+ * <p>
+ * Hibernate不会把JPQL的批量更新语句合并为JDBC批处理，多件商品的条件更新需要直接以JDBC批处理发出
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 14:10
+ **/
+public interface StockpileBatchRepository {
+
+    /**
+     * 以一次JDBC批处理完成多件商品的条件更新，条件与{@link StockpileRepository}中同名的更新语句一致
+     * 返回每件商品受影响的行数，为0表示商品不存在或数量不足
+     */
+    Map<Integer, Integer> batchUpdate(DeliveredStatus status, Map<Integer, Integer> amounts);
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import org.hibernate.Session;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 库存批量条件更新的实现，在当前事务的数据库连接上以{@link PreparedStatement#addBatch()}发出
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 14:15
+ **/
+public class StockpileBatchRepositoryImpl implements StockpileBatchRepository {
+
+    private static final Map<DeliveredStatus, String> SQL = new EnumMap<>(DeliveredStatus.class);
+
+    static {
+        SQL.put(DeliveredStatus.FROZEN, "UPDATE stockpile SET amount = amount - ?, frozen = frozen + ? WHERE id = ? AND amount >= ?");
+        SQL.put(DeliveredStatus.THAWED, "UPDATE stockpile SET amount = amount + ?, frozen = frozen - ? WHERE id = ? AND frozen >= ?");
+        SQL.put(DeliveredStatus.DECREASE, "UPDATE stockpile SET frozen = frozen - ? WHERE id = ? AND frozen >= ?");
+        SQL.put(DeliveredStatus.INCREASE, "UPDATE stockpile SET frozen = frozen + ? WHERE id = ?");
+    }
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Map<Integer, Integer> batchUpdate(DeliveredStatus status, Map<Integer, Integer> amounts) {
+        Map<Integer, Integer> rows = new LinkedHashMap<>();
+        if (amounts.isEmpty()) {
+            return rows;
+        }
+        // 直接使用JDBC连接不会触发自动flush，先把持久化上下文中尚未写入的修改写入数据库
+        entityManager.flush();
+        List<Integer> productIds = new ArrayList<>(amounts.keySet());
+        String sql = SQL.get(status);
+        // WHERE之前的参数都是数量，之后依次是商品ID与作为条件的数量
+        int idParameter = parameters(sql.substring(0, sql.indexOf(" WHERE "))) + 1;
+        int parameters = parameters(sql);
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (Integer productId : productIds) {
+                    for (int i = 1; i <= parameters; i++) {
+                        statement.setInt(i, i == idParameter ? productId : amounts.get(productId));
+                    }
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    // 条件更新必须知道每条语句是否生效，驱动改写批处理后不再返回行数时不能假定成功
+                    if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                        throw new IllegalStateException("JDBC驱动未返回批处理中每条语句的更新行数，无法判断库存条件是否满足");
+                    }
+                    rows.put(productIds.get(i), counts[i]);
+                }
+            }
+        });
+        return rows;
+    }
+
+    private static int parameters(String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+}
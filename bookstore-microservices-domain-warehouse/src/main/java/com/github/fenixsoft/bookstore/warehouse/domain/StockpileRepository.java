@@ -19,7 +19,12 @@
 package com.github.fenixsoft.bookstore.warehouse.domain;
 
 import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 /**
  * 库存数据仓库
@@ -27,7 +32,55 @@ import org.springframework.data.repository.CrudRepository;
  * @author icyfenix@gmail.com
  * @date 2020/3/12 16:36
  **/
-public interface StockpileRepository extends CrudRepository<Stockpile, Integer> {
+public interface StockpileRepository extends CrudRepository<Stockpile, Integer>, StockpileBatchRepository {
+
+    /**
+     * 以指定数值覆盖库存，供库存预留引擎批量写回内存中的库存
+     */
+    @Modifying
+    @Query("update Stockpile s set s.amount = :amount, s.frozen = :frozen where s.id = :id")
+    int overwrite(@Param("id") Integer id, @Param("amount") Integer amount, @Param("frozen") Integer frozen);
+
+    /**
+     * 冻结库存：从正常库存移动指定数量至冻结，库存不足时不做修改
+     * 以下条件更新均返回受影响的行数，为0表示商品不存在或数量不足
+     */
+    @Modifying
+    @Query("update Stockpile s set s.amount = s.amount - :number, s.frozen = s.frozen + :number where s.id = :id and s.amount >= :number")
+    int frozen(@Param("id") Integer id, @Param("number") Integer number);
+
+    /**
+     * 解冻库存：从冻结移动指定数量至正常库存，冻结数量不足时不做修改
+     */
+    @Modifying
+    @Query("update Stockpile s set s.amount = s.amount + :number, s.frozen = s.frozen - :number where s.id = :id and s.frozen >= :number")
+    int thawed(@Param("id") Integer id, @Param("number") Integer number);
+
+    /**
+     * 出库：从冻结数量中扣减，冻结数量不足时不做修改
+     */
+    @Modifying
+    @Query("update Stockpile s set s.frozen = s.frozen - :number where s.id = :id and s.frozen >= :number")
+    int decrease(@Param("id") Integer id, @Param("number") Integer number);
+
+    /**
+     * 入库：增加至冻结数量，与出库互为逆操作
+     */
+    @Modifying
+    @Query("update Stockpile s set s.frozen = s.frozen + :number where s.id = :id")
+    int increase(@Param("id") Integer id, @Param("number") Integer number);
+
+    /**
+     * 设置库存数量
+     */
+    @Modifying
+    @Query("update Stockpile s set s.amount = :amount where s.id = :id")
+    int setAmount(@Param("id") Integer id, @Param("amount") Integer amount);
 
+    /**
+     * 查询全部商品的库存与冻结数量，每行为[id, amount, frozen]，不加载实体
+     */
+    @Query("select s.id, s.amount, s.frozen from Stockpile s")
+    List<Object[]> findLevels();
 
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.domain;
+
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
+import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.IdempotenceException;
+import com.github.fenixsoft.bookstore.warehouse.infrastructure.IdempotencyKeyStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityNotFoundException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 库存预留引擎
+ * <p>
+ * 秒杀等场景下，热门商品的冻结、解冻、扣减都集中在同一行stockpile记录上，逐次“读取-修改-写回”要么在行锁上排队，要么丢失更新。
+ * 启用此引擎后，每件商品的库存与冻结数量保存在内存的单元（Cell）中，以CAS无锁地完成预留，再由后台定时将变动的商品成批写回数据库（Write-Behind）。
+ * <p>
+ * 崩溃恢复依赖payment_stockpile表：每次库存变动都先在调用者的事务中插入一条applied为false的{@link PaymentStockpile}记录作为预写日志，
+ * 写回库存表时在同一个事务中将对应日志标记为已写回。节点重启时，先从库存表加载数值，再重放所有未写回的日志，即可还原崩溃前已提交的预留。
+ * <p>
+ * 注意：
+ * 1. 调用者事务未提交前，预留的数量记在单元的“待定”部分，它参与库存是否充足的判断，但不会被写回；事务回滚时自动归还
+ * 2. 内存中的库存只属于当前节点，这意味着启用引擎时warehouse服务只能部署单个节点（或按商品分片路由），否则各节点的库存会相互覆盖
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/6 10:12
+ **/
+@Named
+@ConditionalOnProperty(prefix = "bookstore.warehouse.reservation", name = "enabled", havingValue = "true")
+public class StockpileReservationEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(StockpileReservationEngine.class);
+
+    private final ConcurrentMap<Integer, AtomicReference<Cell>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * 有已提交变动、等待写回数据库的商品
+     */
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    private StockpileRepository repository;
+
+    @Inject
+    private PaymentStockpileRepository journalRepository;
+
+    @Inject
+    private PlatformTransactionManager transactionManager;
+
+    @Inject
+    private StockpileAvailability availability;
+
+    @Inject
+    private IdempotencyKeyStore idempotencyKeys;
+
+    /**
+     * 从库存表加载库存，并重放崩溃前未写回的库存日志
+     */
+    @PostConstruct
+    public void recover() {
+        repository.findAll().forEach(s -> cells.put(s.getId(), new AtomicReference<>(new Cell(s.getAmount(), s.getFrozen()))));
+        List<PaymentStockpile> journal = journalRepository.findByAppliedFalseOrderByIdAsc();
+        journal.forEach(j -> {
+            Delta delta = Delta.of(DeliveredStatus.valueOf(j.getStockOp()), j.getAmount());
+            Optional.ofNullable(cells.get(j.getProductId())).ifPresent(cell -> cell.updateAndGet(c -> c.recover(delta, j.getId())));
+            dirty.add(j.getProductId());
+        });
+        log.info("库存预留引擎已加载，商品：{}，重放未写回的库存日志：{}条", cells.size(), journal.size());
+    }
+
+    /**
+     * 查询内存中的库存
+     */
+    public Stockpile get(Integer productId) {
+        Cell cell = cell(productId).get();
+        Stockpile stock = new Stockpile();
+        stock.setId(productId);
+        stock.setAmount(cell.amount);
+        stock.setFrozen(cell.frozen);
+        return stock;
+    }
+
+    /**
+     * 预留库存
+     * <p>
+     * 在调用者的事务中写入预写日志，并以CAS将变动记入内存单元的待定部分，调用者事务提交后才转为已提交的变动
+     * 库存或冻结数量不足时抛出{@link IllegalStateException}，重复的payId操作抛出{@link IdempotenceException}
+     */
+    public void reserve(DeliveredStatus status, Integer productId, Integer amount, String payId) {
+        AtomicReference<Cell> cell = cell(productId);
+        Delta delta = Delta.of(status, amount);
+        // 先以CAS记入待定部分，数量不足时在写日志之前就失败，不会留下无效的日志与幂等键
+        cell.updateAndGet(c -> c.reserve(delta, productId));
+        PaymentStockpile entry = new PaymentStockpile(payId, productId, status.name(), amount);
+        entry.setApplied(false);
+        try {
+            idempotencyKeys.save(entry);
+        } catch (RuntimeException e) {
+            cell.updateAndGet(c -> c.release(delta));
+            throw e;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        commit(productId, delta, entry.getId());
+                    } else {
+                        cell.updateAndGet(c -> c.release(delta));
+                    }
+                }
+            });
+        } else {
+            commit(productId, delta, entry.getId());
+        }
+    }
+
+    /**
+     * 设置商品库存
+     * 管理员直接设置库存的操作没有日志，因此立即写回
+     */
+    public void set(Integer productId, Integer amount) {
+        cell(productId).updateAndGet(c -> c.set(amount));
+        write(Collections.singleton(productId));
+    }
+
+    /**
+     * 将有变动的商品成批写回数据库
+     */
+    @Scheduled(fixedDelayString = "${bookstore.warehouse.reservation.flush-interval:200}")
+    public void flush() {
+        if (!dirty.isEmpty()) {
+            List<Integer> productIds = new ArrayList<>(dirty);
+            dirty.removeAll(productIds);
+            write(productIds);
+        }
+    }
+
+    private void commit(Integer productId, Delta delta, Integer journalId) {
+        cell(productId).updateAndGet(c -> c.commit(delta, journalId));
+        dirty.add(productId);
+    }
+
+    private AtomicReference<Cell> cell(Integer productId) {
+        return cells.computeIfAbsent(productId, id -> repository.findById(id)
+                .map(s -> new AtomicReference<>(new Cell(s.getAmount(), s.getFrozen())))
+                .orElseThrow(() -> new EntityNotFoundException(id.toString())));
+    }
+
+    /**
+     * 写回指定商品的库存，并标记对应日志已写回
+     * 写回之间需要串行，否则先取快照的写回可能后提交，以旧数值覆盖新数值
+     */
+    private synchronized void write(Collection<Integer> productIds) {
+        Map<Integer, Cell> snapshots = new HashMap<>();
+        productIds.forEach(id -> Optional.ofNullable(cells.get(id)).ifPresent(cell -> snapshots.put(id, cell.getAndUpdate(Cell::drain))));
+        List<Integer> journalIds = new ArrayList<>();
+        snapshots.values().forEach(c -> Journal.collect(c.journal, journalIds));
+        try {
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            template.execute(status -> {
+                snapshots.forEach((id, c) -> repository.overwrite(id, c.amount, c.frozen));
+                if (!journalIds.isEmpty()) {
+                    journalRepository.markApplied(journalIds);
+                }
+                return null;
+            });
+            snapshots.forEach((id, c) -> availability.update(id, c.amount, c.frozen));
+            log.debug("库存预留引擎写回商品：{}个，日志：{}条", snapshots.size(), journalIds.size());
+        } catch (RuntimeException e) {
+            // 写回失败时把日志编号归还给内存单元，等待下一次写回
+            snapshots.forEach((id, c) -> cells.get(id).updateAndGet(current -> current.restore(c.journal)));
+            dirty.addAll(snapshots.keySet());
+            log.error("库存预留引擎写回失败，将在下次写回时重试", e);
+        }
+    }
+
+    /**
+     * 库存变动量
+     */
+    private static final class Delta {
+        final int amount;
+        final int frozen;
+
+        Delta(int amount, int frozen) {
+            this.amount = amount;
+            this.frozen = frozen;
+        }
+
+        static Delta of(DeliveredStatus status, int number) {
+            switch (status) {
+                case FROZEN:
+                    return new Delta(-number, number);
+                case THAWED:
+                    return new Delta(number, -number);
+                case DECREASE:
+                    return new Delta(0, -number);
+                default:
+                    // 与Stockpile.increase()的行为保持一致
+                    return new Delta(0, number);
+            }
+        }
+
+        Delta negate() {
+            return new Delta(-amount, -frozen);
+        }
+    }
+
+    /**
+     * 已提交但尚未写回数据库的日志编号，不可变链表，便于在CAS中以O(1)代价追加
+     */
+    private static final class Journal {
+        final int id;
+        final Journal next;
+
+        Journal(int id, Journal next) {
+            this.id = id;
+            this.next = next;
+        }
+
+        static void collect(Journal journal, List<Integer> ids) {
+            for (Journal j = journal; j != null; j = j.next) {
+                ids.add(j.id);
+            }
+        }
+
+        static Journal concat(Journal head, Journal tail) {
+            List<Integer> ids = new ArrayList<>();
+            collect(head, ids);
+            Journal result = tail;
+            for (int i = ids.size() - 1; i >= 0; i--) {
+                result = new Journal(ids.get(i), result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 单件商品的库存单元，不可变对象，所有变更都以CAS替换整个单元完成
+     */
+    private static final class Cell {
+        /**
+         * 已提交的库存与冻结数量
+         */
+        final int amount;
+        final int frozen;
+        /**
+         * 调用者事务尚未提交的预留变动
+         */
+        final int pendingAmount;
+        final int pendingFrozen;
+        final Journal journal;
+
+        Cell(int amount, int frozen) {
+            this(amount, frozen, 0, 0, null);
+        }
+
+        Cell(int amount, int frozen, int pendingAmount, int pendingFrozen, Journal journal) {
+            this.amount = amount;
+            this.frozen = frozen;
+            this.pendingAmount = pendingAmount;
+            this.pendingFrozen = pendingFrozen;
+            this.journal = journal;
+        }
+
+        void check(Delta delta, Integer productId) {
+            if (amount + pendingAmount + delta.amount < 0) {
+                throw new IllegalStateException("商品库存不足，商品：" + productId);
+            }
+            if (frozen + pendingFrozen + delta.frozen < 0) {
+                throw new IllegalStateException("商品冻结数量不足，商品：" + productId);
+            }
+        }
+
+        Cell reserve(Delta delta, Integer productId) {
+            check(delta, productId);
+            return new Cell(amount, frozen, pendingAmount + delta.amount, pendingFrozen + delta.frozen, journal);
+        }
+
+        Cell release(Delta delta) {
+            return new Cell(amount, frozen, pendingAmount - delta.amount, pendingFrozen - delta.frozen, journal);
+        }
+
+        Cell commit(Delta delta, int journalId) {
+            Delta pending = delta.negate();
+            return new Cell(amount + delta.amount, frozen + delta.frozen, pendingAmount + pending.amount, pendingFrozen + pending.frozen, new Journal(journalId, journal));
+        }
+
+        Cell recover(Delta delta, int journalId) {
+            return new Cell(amount + delta.amount, frozen + delta.frozen, pendingAmount, pendingFrozen, new Journal(journalId, journal));
+        }
+
+        Cell set(int newAmount) {
+            return new Cell(newAmount, frozen, pendingAmount, pendingFrozen, journal);
+        }
+
+        Cell drain() {
+            return new Cell(amount, frozen, pendingAmount, pendingFrozen, null);
+        }
+
+        Cell restore(Journal unwritten) {
+            return new Cell(amount, frozen, pendingAmount, pendingFrozen, Journal.concat(unwritten, journal));
+        }
+    }
+}
@@ -18,14 +18,19 @@
 
 package com.github.fenixsoft.bookstore.warehouse.domain;
 
+import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
+import com.github.fenixsoft.bookstore.dto.Item;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityNotFoundException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * 商品库存的领域服务
@@ -44,6 +49,9 @@ public class StockpileService {
     @Inject
     private ProductRepository productRepository;
 
+    @Inject
+    private StockpileAvailability availability;
+
     /**
      * 根据产品查询库存
      */
@@ -51,15 +59,23 @@ public class StockpileService {
         return repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
     }
 
+    /**
+     * 根据多个产品批量查询库存，不存在的产品不会出现在结果中
+     */
+    public List<Stockpile> getByProductIds(Collection<Integer> productIds) {
+        List<Stockpile> stocks = new ArrayList<>();
+        repository.findAllById(productIds).forEach(stocks::add);
+        return stocks;
+    }
+
     /**
      * 货物售出
      * 从冻结状态的货物中扣减
      */
     public void decrease(Integer productId, Integer amount) {
-        Stockpile stock = repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.decrease(amount);
-        repository.save(stock);
-        log.info("库存出库，商品：{}，数量：{}，现有库存：{}，现存冻结：{}", productId, amount, stock.getAmount(), stock.getFrozen());
+        check(repository.decrease(productId, amount), productId, "冻结数量不足");
+        availability.apply(productId, 0, -amount);
+        log.info("库存出库，商品：{}，数量：{}", productId, amount);
     }
 
     /**
@@ -67,10 +83,9 @@ public class StockpileService {
      * 增加指定数量货物至正常货物状态
      */
     public void increase(Integer productId, Integer amount) {
-        Stockpile stock = repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.increase(amount);
-        repository.save(stock);
-        log.info("库存入库，商品：{}，数量：{}，现有库存：{}，现存冻结：{}", productId, amount, stock.getAmount(), stock.getFrozen());
+        check(repository.increase(productId, amount), productId, null);
+        availability.apply(productId, 0, amount);
+        log.info("库存入库，商品：{}，数量：{}", productId, amount);
     }
 
 
@@ -79,13 +94,73 @@ public class StockpileService {
      * 从正常货物中移动指定数量至冻结状态
      */
     public Product frozen(Integer productId, Integer amount) {
-        Stockpile stock = repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.frozen(amount);
-        repository.save(stock);
-        log.info("冻结库存，商品：{}，数量：{}，现有库存：{}，现存冻结：{}", productId, amount, stock.getAmount(), stock.getFrozen());
-        Product product = productRepository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.setProduct(product);
-        return stock.getProduct();
+        check(repository.frozen(productId, amount), productId, "库存不足");
+        availability.apply(productId, -amount, amount);
+        log.info("冻结库存，商品：{}，数量：{}", productId, amount);
+        return productRepository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
+    }
+
+    /**
+     * 批量冻结货物
+     * 每件商品以一条带库存条件的更新语句原子地完成冻结，无需先读取库存，也不会在并发下丢失更新或超卖，全部语句以一次JDBC批处理发出；
+     * 任何一件商品库存不足都会抛出异常，由调用者的事务整体回滚。商品信息以一次查询取出
+     */
+    public List<Product> frozen(Collection<Item> items) {
+        // 同一商品在清单中出现多次时合并数量，保持清单原有顺序
+        Map<Integer, Integer> amounts = items.stream().collect(Collectors.toMap(Item::getProductId, Item::getAmount, Integer::sum, LinkedHashMap::new));
+        Map<Integer, Product> products = productRepository.findByIdIn(amounts.keySet()).stream()
+                .collect(Collectors.toMap(Product::getId, Function.identity()));
+        amounts.keySet().forEach(productId -> Optional.ofNullable(products.get(productId)).orElseThrow(() -> new EntityNotFoundException(productId.toString())));
+        repository.batchUpdate(DeliveredStatus.FROZEN, amounts).forEach((productId, rows) -> check(rows, productId, "库存不足"));
+        amounts.forEach((productId, amount) -> {
+            availability.apply(productId, -amount, amount);
+            log.info("冻结库存，商品：{}，数量：{}", productId, amount);
+        });
+        return items.stream().map(i -> products.get(i.getProductId())).collect(Collectors.toList());
+    }
+
+    /**
+     * 批量调整货物出库状态
+     * 每件商品以一条带数量条件的更新语句原子地完成调整，全部语句以一次JDBC批处理发出，
+     * 返回实际完成调整的商品，商品不存在或数量不足的不包含在内
+     */
+    public Set<Integer> adjust(DeliveredStatus status, Map<Integer, Integer> amounts) {
+        Set<Integer> adjusted = new HashSet<>();
+        repository.batchUpdate(status, amounts).forEach((productId, rows) -> {
+            Integer amount = amounts.get(productId);
+            if (applied(rows, productId, delta(status, true, amount), delta(status, false, amount))) {
+                adjusted.add(productId);
+                log.info("调整库存（{}），商品：{}，数量：{}", status, productId, amount);
+            } else {
+                log.warn("调整库存（{}）失败，商品不存在或数量不足，商品：{}，数量：{}", status, productId, amount);
+            }
+        });
+        return adjusted;
+    }
+
+    /**
+     * 出库状态调整对正常库存（forAmount）或冻结数量的影响
+     */
+    private static int delta(DeliveredStatus status, boolean forAmount, int amount) {
+        switch (status) {
+            case DECREASE:
+                return forAmount ? 0 : -amount;
+            case INCREASE:
+                return forAmount ? 0 : amount;
+            case FROZEN:
+                return forAmount ? -amount : amount;
+            case THAWED:
+                return forAmount ? amount : -amount;
+            default:
+                return 0;
+        }
+    }
+
+    private boolean applied(int rows, Integer productId, int amountDelta, int frozenDelta) {
+        if (rows > 0) {
+            availability.apply(productId, amountDelta, frozenDelta);
+        }
+        return rows > 0;
     }
 
     /**
@@ -93,19 +168,29 @@ public class StockpileService {
      * 从冻结货物中移动指定数量至正常状态
      */
     public void thawed(Integer productId, Integer amount) {
-        Stockpile stock = repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.thawed(amount);
-        repository.save(stock);
-        log.info("解冻库存，商品：{}，数量：{}，现有库存：{}，现存冻结：{}", productId, amount, stock.getAmount(), stock.getFrozen());
+        check(repository.thawed(productId, amount), productId, "冻结数量不足");
+        availability.apply(productId, amount, -amount);
+        log.info("解冻库存，商品：{}，数量：{}", productId, amount);
     }
 
     /**
      * 设置货物数量
      */
     public void set(Integer productId, Integer amount) {
-        Stockpile stock = repository.findById(productId).orElseThrow(() -> new EntityNotFoundException(productId.toString()));
-        stock.setAmount(amount);
-        repository.save(stock);
+        check(repository.setAmount(productId, amount), productId, null);
+        availability.update(getByProductId(productId));
+    }
+
+    /**
+     * 条件更新没有影响任何行时，区分是商品不存在还是数量不足
+     */
+    private void check(int rows, Integer productId, String shortage) {
+        if (rows == 0) {
+            if (shortage == null || !repository.existsById(productId)) {
+                throw new EntityNotFoundException(productId.toString());
+            }
+            throw new IllegalStateException(shortage + "，商品：" + productId);
+        }
     }
 
 }
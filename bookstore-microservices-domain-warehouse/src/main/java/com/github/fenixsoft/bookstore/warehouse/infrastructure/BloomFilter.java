@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.infrastructure;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 字符串的布隆过滤器
+ * <p>
+ * mightContain返回false时，该字符串一定没有被put过；返回true时只是可能存在，误判率由预期数量与容许的误判率决定。
+ * 位数组以AtomicLongArray存放，put与mightContain可以并发执行而无需加锁。布隆过滤器不支持删除，需要淘汰旧元素时应重建
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/14 9:30
+ **/
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    private final int hashes;
+
+    /**
+     * @param expectedInsertions 预期放入的元素数量
+     * @param fpp                预期数量下容许的误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // AtomicLongArray以int为下标，位数组至多Integer.MAX_VALUE个long，超出时按上限截断，误判率会高于fpp
+        int words = (int) Math.min(Math.max((m + 63) / 64, 1), Integer.MAX_VALUE);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words * 64;
+        this.hashes = Math.max((int) Math.round((double) bitSize / n * Math.log(2)), 1);
+    }
+
+    public void put(String value) {
+        long h1 = hash(value);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashes; i++) {
+            long index = index(h1 + i * h2);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long h1 = hash(value);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashes; i++) {
+            long index = index(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 以64位做双重哈希的组合与取模，位数组超过2^31位时高位部分同样能被命中
+     */
+    private long index(long combined) {
+        return Math.floorMod(combined, bitSize);
+    }
+
+    /**
+     * 64位FNV-1a哈希再经过一轮混合，作为双重哈希的第一个基础哈希值
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3的64位终结混合，对第一个基础哈希值再混合一次得到第二个基础哈希值
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
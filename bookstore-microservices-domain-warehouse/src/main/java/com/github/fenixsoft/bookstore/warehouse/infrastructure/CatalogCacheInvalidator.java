@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.infrastructure;
+
+import com.github.fenixsoft.bookstore.warehouse.domain.CatalogVersionRepository;
+import com.github.fenixsoft.bookstore.warehouse.domain.ProductSearchIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * 商品缓存的跨节点失效
+ * <p>
+ * ProductResource的缓存只存在于当前节点的内存中，某个节点修改了商品，其他节点的缓存仍然是旧数据。
+ * 商品每次变动都会在同一事务中增加商品目录的版本号，这里定期轮询版本号，发现变化即清空本节点的商品缓存。
+ * 缓存因此可以设置很长的过期时间，其他节点读到旧数据的时间窗口不超过一个轮询间隔。
+ * 商品检索索引同理，版本变化时从数据库重建
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/12 10:05
+ **/
+@Named
+public class CatalogCacheInvalidator {
+
+    public static final String CACHE_NAME = "resource.product";
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogCacheInvalidator.class);
+
+    @Inject
+    private CatalogVersionRepository repository;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private ProductSearchIndex searchIndex;
+
+    private volatile Long knownVersion;
+
+    @Scheduled(fixedDelayString = "${bookstore.warehouse.catalog.poll-interval:1000}")
+    public void poll() {
+        Long version = repository.current();
+        if (knownVersion != null && !Objects.equals(knownVersion, version)) {
+            Optional.ofNullable(cacheManager.getCache(CACHE_NAME)).ifPresent(Cache::clear);
+            searchIndex.rebuild();
+            log.info("商品目录版本由{}变为{}，清空商品缓存", knownVersion, version);
+        }
+        knownVersion = version;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.infrastructure;
+
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.IdempotenceException;
+import com.github.fenixsoft.bookstore.warehouse.domain.PaymentStockpile;
+import com.github.fenixsoft.bookstore.warehouse.domain.PaymentStockpileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 库存操作的幂等键存储
+ * <p>
+ * 库存操作的幂等由payment_stockpile表的唯一索引(pay_id, product_id, stock_op)保证，但以插入冲突来发现重复，
+ * 需要经历违反约束、Spring异常转换、生成异常堆栈的完整过程，代价很高。这里在数据库之前加了两层内存中的判断：
+ * <ol>
+ *     <li>最近幂等键的LRU缓存：命中即可确定是重复操作，直接抛出{@link IdempotenceException}，无需访问数据库</li>
+ *     <li>全部幂等键的布隆过滤器：未命中即可确定本节点从未见过该键，直接插入；命中时再以一次查询确认是否重复</li>
+ * </ol>
+ * 其他节点写入的键不在本节点的内存中，因此唯一索引仍是最终的保证，插入冲突时依然抛出{@link IdempotenceException}，只是不再是常规路径。
+ * <p>
+ * 幂等键只需要保留到同一支付单不可能再重复调用为止，超过保留期限的已写回记录会定期转移到归档表，随后重建布隆过滤器以淘汰旧键
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/14 10:20
+ **/
+@Named
+public class IdempotencyKeyStore {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyKeyStore.class);
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private final PaymentStockpileRepository repository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long expectedKeys;
+
+    private final double fpp;
+
+    private final long ttl;
+
+    private final Map<String, Boolean> recent;
+
+    private volatile BloomFilter filter;
+
+    /**
+     * 正在重建的过滤器，重建期间写入的键同时放入新旧两个过滤器
+     */
+    private volatile BloomFilter rebuilding;
+
+    private final Counter hit;
+    private final Counter miss;
+    private final Counter probe;
+    private final Counter duplicate;
+
+    @Inject
+    public IdempotencyKeyStore(PaymentStockpileRepository repository,
+                               PlatformTransactionManager transactionManager,
+                               MeterRegistry registry,
+                               @Value("${bookstore.warehouse.idempotency.expected-keys:1000000}") long expectedKeys,
+                               @Value("${bookstore.warehouse.idempotency.fpp:0.01}") double fpp,
+                               @Value("${bookstore.warehouse.idempotency.recent-keys:10000}") int recentKeys,
+                               @Value("${bookstore.warehouse.idempotency.ttl:604800000}") long ttl) {
+        this.repository = repository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.expectedKeys = expectedKeys;
+        this.fpp = fpp;
+        this.ttl = ttl;
+        this.recent = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recentKeys;
+            }
+        });
+        this.filter = new BloomFilter(expectedKeys, fpp);
+        this.hit = Counter.builder("warehouse.idempotency.hit").description("最近幂等键缓存直接判定为重复的次数").register(registry);
+        this.miss = Counter.builder("warehouse.idempotency.miss").description("布隆过滤器直接判定为新操作的次数").register(registry);
+        this.probe = Counter.builder("warehouse.idempotency.probe").description("布隆过滤器命中、需要查询数据库确认的次数").register(registry);
+        this.duplicate = Counter.builder("warehouse.idempotency.duplicate").description("判定为重复操作的总次数").register(registry);
+    }
+
+    /**
+     * 以数据库中现存的全部幂等键建立布隆过滤器
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void rebuild() {
+        BloomFilter rebuilt = new BloomFilter(expectedKeys, fpp);
+        rebuilding = rebuilt;
+        int count = 0;
+        Integer after = 0;
+        List<Object[]> keys;
+        do {
+            keys = repository.findKeysAfter(after, PageRequest.of(0, LOAD_BATCH_SIZE));
+            for (Object[] k : keys) {
+                rebuilt.put(key((String) k[1], (Integer) k[2], (String) k[3]));
+                after = (Integer) k[0];
+            }
+            count += keys.size();
+        } while (keys.size() == LOAD_BATCH_SIZE);
+        filter = rebuilt;
+        rebuilding = null;
+        log.info("幂等键布隆过滤器已建立，键数：{}", count);
+    }
+
+    /**
+     * 写入一条库存操作记录，该操作已执行过时抛出{@link IdempotenceException}
+     * 没有payId的记录（如结算时的冻结）不需要幂等，直接写入
+     */
+    public PaymentStockpile save(PaymentStockpile entry) {
+        if (entry.getPayId() == null) {
+            return repository.save(entry);
+        }
+        String key = key(entry.getPayId(), entry.getProductId(), entry.getStockOp());
+        if (recent.containsKey(key)) {
+            hit.increment();
+            throw duplicated(entry);
+        }
+        if (filter.mightContain(key)) {
+            probe.increment();
+            if (repository.existsByPayIdAndProductIdAndStockOp(entry.getPayId(), entry.getProductId(), entry.getStockOp())) {
+                remember(key);
+                throw duplicated(entry);
+            }
+        } else {
+            miss.increment();
+        }
+        try {
+            PaymentStockpile saved = repository.save(entry);
+            recorded(key);
+            return saved;
+        } catch (DataIntegrityViolationException e) {
+            // 其他节点写入的键，或者与并发请求冲突
+            throw duplicated(entry);
+        }
+    }
+
+    /**
+     * 查询支付单在给定商品中已执行过某种库存操作的商品，布隆过滤器判定全部为新操作时无需查询数据库
+     */
+    public Set<Integer> findDone(String payId, String stockOp, Collection<Integer> productIds) {
+        List<String> keys = productIds.stream().map(id -> key(payId, id, stockOp)).collect(Collectors.toList());
+        if (keys.stream().noneMatch(filter::mightContain)) {
+            miss.increment(keys.size());
+            return Collections.emptySet();
+        }
+        probe.increment(keys.size());
+        Set<Integer> done = repository.findByPayIdAndStockOp(payId, stockOp).stream()
+                .map(PaymentStockpile::getProductId).collect(Collectors.toSet());
+        duplicate.increment(done.size());
+        return done;
+    }
+
+    /**
+     * 批量写入库存操作记录，调用者应已通过findDone排除了重复的操作
+     * 与并发请求冲突时原样抛出异常，由调用者的事务整体回滚，不能视为成功
+     */
+    public void saveAll(Collection<PaymentStockpile> entries) {
+        try {
+            repository.saveAll(entries);
+        } catch (DataIntegrityViolationException e) {
+            duplicate.increment();
+            throw e;
+        }
+        entries.forEach(e -> recorded(key(e.getPayId(), e.getProductId(), e.getStockOp())));
+    }
+
+    /**
+     * 将保留期限以前的已写回记录转移到归档表，然后重建布隆过滤器
+     */
+    @Scheduled(fixedDelayString = "${bookstore.warehouse.idempotency.archive-interval:3600000}")
+    public void archive() {
+        Date deadline = new Date(System.currentTimeMillis() - ttl);
+        Integer maxId = repository.findMaxIdBefore(deadline);
+        if (maxId == null) {
+            return;
+        }
+        Integer archived = transactionTemplate.execute(status -> {
+            repository.archive(deadline, maxId);
+            return repository.purge(deadline, maxId);
+        });
+        if (archived != null && archived > 0) {
+            log.info("归档库存操作记录：{}条，截止时间：{}", archived, deadline);
+            rebuild();
+        }
+    }
+
+    /**
+     * 布隆过滤器立即记录（回滚后残留只会造成一次多余的查询），最近键缓存在事务提交后才记录（否则回滚的操作会被误判为重复）
+     */
+    private void recorded(String key) {
+        filter.put(key);
+        Optional.ofNullable(rebuilding).ifPresent(f -> f.put(key));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    remember(key);
+                }
+            });
+        } else {
+            remember(key);
+        }
+    }
+
+    private void remember(String key) {
+        recent.put(key, Boolean.TRUE);
+    }
+
+    private IdempotenceException duplicated(PaymentStockpile entry) {
+        duplicate.increment();
+        String msg = String.format("PaymentStockpile Idempotent, payId: %s, productId: %s, status: %s", entry.getPayId(), entry.getProductId(), entry.getStockOp());
+        return new IdempotenceException(msg);
+    }
+
+    private static String key(String payId, Integer productId, String stockOp) {
+        return payId + '|' + productId + '|' + stockOp;
+    }
+}
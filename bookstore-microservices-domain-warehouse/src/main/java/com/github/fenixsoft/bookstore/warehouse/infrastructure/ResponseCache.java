@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.warehouse.infrastructure;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.util.DigestUtils;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 预序列化的响应缓存
+ * <p>
+ * 以实体对象为缓存值时，即使命中缓存，每次请求仍要由Jackson重新序列化一遍。
+ * 这里缓存的是序列化后的UTF-8字节、压缩后的gzip字节和据此计算的强ETag，命中缓存时直接把字节写入响应：
+ * 1. 请求带有匹配的If-None-Match时返回304，不传输内容
+ * 2. 客户端接受gzip时返回压缩后的字节，否则返回原始字节
+ * 3. 结果为空时返回204，与直接返回null的资源方法行为一致
+ * <p>
+ * 缓存值放在Spring Cache中原有的缓存名称和键之下，所以原有的@CacheEvict和跨节点的缓存清空依然有效
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/13 10:26
+ **/
+@Named
+public class ResponseCache {
+
+    private static final MediaType JSON_UTF8 = MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8");
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private ObjectMapper objectMapper;
+
+    /**
+     * 从缓存中取出响应，缓存中没有时由loader加载并序列化后放入缓存，并发的请求只会加载一次
+     */
+    public Response respond(String cacheName, Object key, HttpHeaders headers, Supplier<?> loader) {
+        Cache cache = Objects.requireNonNull(cacheManager.getCache(cacheName));
+        CachedResponse cached = cache.get(key, () -> serialize(loader.get()));
+        if (cached == null || cached.json == null) {
+            return Response.noContent().build();
+        }
+        EntityTag tag = new EntityTag(cached.etag);
+        if (matches(headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH), cached.etag)) {
+            return Response.notModified(tag).build();
+        }
+        boolean gzip = Optional.ofNullable(headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING))
+                .map(values -> values.stream().anyMatch(v -> v.toLowerCase().contains("gzip")))
+                .orElse(false);
+        Response.ResponseBuilder builder = Response.ok(gzip ? cached.gzip : cached.json, JSON_UTF8)
+                .tag(tag)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.build();
+    }
+
+    private CachedResponse serialize(Object value) {
+        if (value == null) {
+            return new CachedResponse(null, null, null);
+        }
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(value);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length / 4 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+                out.write(json);
+            }
+            return new CachedResponse(json, buffer.toByteArray(), DigestUtils.md5DigestAsHex(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * If-None-Match可以包含多个以逗号分隔的ETag（或弱ETag），也可以是“*”
+     */
+    private static boolean matches(List<String> ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        return ifNoneMatch.stream()
+                .flatMap(value -> Arrays.stream(value.split(",")))
+                .map(String::trim)
+                .map(value -> value.startsWith("W/") ? value.substring(2) : value)
+                .map(value -> value.replace("\"", ""))
+                .anyMatch(value -> value.equals("*") || value.equals(etag));
+    }
+
+    private static class CachedResponse {
+        final byte[] json;
+        final byte[] gzip;
+        final String etag;
+
+        CachedResponse(byte[] json, byte[] gzip, String etag) {
+            this.json = json;
+            this.gzip = gzip;
+            this.etag = etag;
+        }
+    }
+}
@@ -18,16 +18,18 @@
 
 package com.github.fenixsoft.bookstore.warehouse.resource;
 
-import com.github.fenixsoft.bookstore.warehouse.domain.Advertisement;
 import com.github.fenixsoft.bookstore.warehouse.domain.AdvertisementRepository;
-import org.springframework.cache.annotation.Cacheable;
+import com.github.fenixsoft.bookstore.warehouse.infrastructure.ResponseCache;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 /**
  * 广告相关的资源
@@ -43,9 +45,11 @@ public class AdvertisementResource {
     @Inject
     AdvertisementRepository repository;
 
+    @Inject
+    ResponseCache responseCache;
+
     @GET
-    @Cacheable("resource.advertisements")
-    public Iterable<Advertisement> getAllAdvertisements() {
-        return repository.findAll();
+    public Response getAllAdvertisements(@Context HttpHeaders headers) {
+        return responseCache.respond("resource.advertisements", "ALL_ADVERTISEMENT", headers, repository::findAll);
     }
 }
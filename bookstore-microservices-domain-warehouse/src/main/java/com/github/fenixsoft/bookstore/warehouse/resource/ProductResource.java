@@ -22,9 +22,10 @@ import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CommonResponse;
 import com.github.fenixsoft.bookstore.domain.security.Role;
 import com.github.fenixsoft.bookstore.warehouse.application.ProductApplicationService;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
+import com.github.fenixsoft.bookstore.warehouse.domain.ProductSummary;
+import com.github.fenixsoft.bookstore.warehouse.infrastructure.ResponseCache;
 import org.springframework.cache.annotation.CacheConfig;
 import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cache.annotation.Caching;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Component;
@@ -33,8 +34,14 @@ import javax.annotation.security.RolesAllowed;
 import javax.inject.Inject;
 import javax.validation.Valid;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.List;
+import java.util.Optional;
+
+import static com.github.fenixsoft.bookstore.warehouse.infrastructure.CatalogCacheInvalidator.CACHE_NAME;
 
 /**
  * 产品相关的资源
@@ -45,20 +52,54 @@ import javax.ws.rs.core.Response;
 
 @Path("/products")
 @Component
-@CacheConfig(cacheNames = "resource.product")
+@CacheConfig(cacheNames = CACHE_NAME)
 @Produces(MediaType.APPLICATION_JSON)
 public class ProductResource {
 
     @Inject
     ProductApplicationService service;
 
+    @Inject
+    ResponseCache responseCache;
+
+    /**
+     * 默认每页的商品数量
+     */
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * 每页商品数量的上限
+     */
+    private static final int MAX_PAGE_SIZE = 100;
+
     /**
      * 获取仓库中所有的货物信息
+     * 带有after或limit参数时按主键游标分页，after为上一页最后一个商品的ID，分页结果不缓存
      */
     @GET
-    @Cacheable(key = "'ALL_PRODUCT'")
-    public Iterable<Product> getAllProducts() {
-        return service.getAllProducts();
+    public Response getAllProducts(@QueryParam("after") Integer after, @QueryParam("limit") Integer limit, @Context HttpHeaders headers) {
+        if (after == null && limit == null) {
+            return responseCache.respond(CACHE_NAME, "ALL_PRODUCT", headers, service::getAllProducts);
+        }
+        return Response.ok(service.getProducts(after, pageSize(limit))).build();
+    }
+
+    /**
+     * 按主键游标分页获取货物摘要，只包含列表展示所需的字段，完整信息通过getProduct获取
+     */
+    @GET
+    @Path("/summaries")
+    public List<ProductSummary> getProductSummaries(@QueryParam("after") Integer after, @QueryParam("limit") Integer limit) {
+        return service.getProductSummaries(after, pageSize(limit));
+    }
+
+    /**
+     * 按关键字全文检索货物，匹配标题、描述与规格，按相关度排序，以offset与limit分页
+     */
+    @GET
+    @Path("/search")
+    public List<ProductSummary> searchProducts(@QueryParam("q") String query, @QueryParam("offset") Integer offset, @QueryParam("limit") Integer limit) {
+        return service.searchProducts(query, Math.max(0, Optional.ofNullable(offset).orElse(0)), pageSize(limit));
     }
 
     /**
@@ -66,9 +107,8 @@ public class ProductResource {
      */
     @GET
     @Path("/{id}")
-    @Cacheable(key = "#id")
-    public Product getProduct(@PathParam("id") Integer id) {
-        return service.getProduct(id);
+    public Response getProduct(@PathParam("id") Integer id, @Context HttpHeaders headers) {
+        return responseCache.respond(CACHE_NAME, id, headers, () -> service.getProduct(id));
     }
 
     /**
@@ -114,5 +154,9 @@ public class ProductResource {
         return CommonResponse.op(() -> service.removeProduct(id));
     }
 
+    private static int pageSize(Integer limit) {
+        return limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+    }
+
 
 }
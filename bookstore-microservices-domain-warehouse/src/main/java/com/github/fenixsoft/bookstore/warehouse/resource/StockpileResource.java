@@ -5,6 +5,7 @@ import com.github.fenixsoft.bookstore.domain.warehouse.DeliveredStatus;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
 import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
 import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CommonResponse;
 import com.github.fenixsoft.bookstore.warehouse.application.StockpileApplicationService;
 import org.springframework.cache.annotation.CacheConfig;
@@ -13,6 +14,7 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.security.RolesAllowed;
 import javax.inject.Inject;
+import javax.validation.constraints.Size;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -31,6 +33,8 @@ import java.util.List;
 @Produces(MediaType.APPLICATION_JSON)
 public class StockpileResource {
 
+    private static final int MAX_AVAILABILITY_QUERY = 100;
+
     @Inject
     private StockpileApplicationService service;
 
@@ -56,8 +60,29 @@ public class StockpileResource {
         return service.getStockpile(productId);
     }
 
+    /**
+     * 批量查询库存可用量，供商品列表页轮询，必须明确指定productIds，单次至多查询MAX_AVAILABILITY_QUERY件商品
+     * 该接口无需登录，不提供全量导出，避免匿名调用者一次取走全部商品的库存数据
+     * 数据来自内存中的读模型，不访问数据库，可能滞后于实际库存
+     */
+    @GET
+    @Path("/stockpile/availability")
+    public List<Stockpile> queryAvailabilities(@QueryParam("productIds") @Size(min = 1, max = MAX_AVAILABILITY_QUERY, message = "查询库存可用量时必须指定商品，且单次不能超过" + MAX_AVAILABILITY_QUERY + "件") List<Integer> productIds) {
+        return service.getAvailabilities(productIds);
+    }
+
     // 以下是开放给内部微服务调用的方法
 
+    /**
+     * 根据多个产品批量查询库存，不存在的产品不会出现在结果中
+     */
+    @GET
+    @Path("/stockpile")
+    @PreAuthorize("#oauth2.hasAnyScope('SERVICE')")
+    public List<Stockpile> queryStockpiles(@QueryParam("productIds") List<Integer> productIds) {
+        return service.getStockpiles(productIds);
+    }
+
     /**
      * 根据订单id，商品id调整库存，保证幂等
      */
@@ -68,6 +93,16 @@ public class StockpileResource {
         return CommonResponse.op(() -> service.setDeliveredStatus(productId, status, amount, payId));
     }
 
+    /**
+     * 根据订单id批量调整多件商品的库存，保证幂等，返回每件商品的调整结果
+     */
+    @PATCH
+    @Path("/stockpile/delivered")
+    @PreAuthorize("#oauth2.hasAnyScope('SERVICE')")
+    public List<CodedMessage> setDeliveredStatus(@QueryParam("status") DeliveredStatus status, @QueryParam("payId") String payId, List<Item> items) {
+        return service.setDeliveredStatus(payId, status, items);
+    }
+
     /**
      * 冻结库存并填充商品信息
      */
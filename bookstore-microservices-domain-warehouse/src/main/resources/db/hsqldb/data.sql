@@ -90,3 +90,5 @@ INSERT INTO stockpile VALUES (5, 30, 0, 5);
 INSERT INTO stockpile VALUES (6, 30, 0, 6);
 INSERT INTO stockpile VALUES (7, 30, 0, 7);
 INSERT INTO stockpile VALUES (8, 30, 0, 8);
+
+INSERT INTO catalog_version VALUES (1, 0);
@@ -3,6 +3,8 @@ DROP TABLE advertisement IF EXISTS;
 DROP TABLE stockpile IF EXISTS;
 DROP TABLE product IF EXISTS;
 DROP TABLE payment_stockpile IF EXISTS;
+DROP TABLE payment_stockpile_archive IF EXISTS;
+DROP TABLE catalog_version IF EXISTS;
 
 CREATE TABLE product
 (
@@ -50,6 +52,27 @@ CREATE TABLE payment_stockpile
     id           INTEGER IDENTITY PRIMARY KEY,
     pay_id       VARCHAR(100),
     product_id   INTEGER,
-    stock_op     VARCHAR(20)
+    stock_op     VARCHAR(20),
+    amount       INTEGER,
+    applied      BOOLEAN DEFAULT TRUE NOT NULL,
+    create_time  DATETIME DEFAULT CURRENT_TIMESTAMP
 );
 CREATE UNIQUE INDEX pay_stock ON payment_stockpile (pay_id,product_id,stock_op);
+CREATE INDEX pay_stock_applied ON payment_stockpile (applied);
+CREATE INDEX pay_stock_create_time ON payment_stockpile (create_time);
+
+CREATE TABLE payment_stockpile_archive
+(
+    id           INTEGER PRIMARY KEY,
+    pay_id       VARCHAR(100),
+    product_id   INTEGER,
+    stock_op     VARCHAR(20),
+    amount       INTEGER,
+    create_time  DATETIME
+);
+
+CREATE TABLE catalog_version
+(
+    id      INTEGER IDENTITY PRIMARY KEY,
+    version BIGINT NOT NULL
+);
@@ -195,3 +195,6 @@ INSERT INTO stockpile
 VALUES (7, 30, 0, 7);
 INSERT INTO stockpile
 VALUES (8, 30, 0, 8);
+
+INSERT INTO catalog_version
+VALUES (1, 0);
@@ -2,6 +2,9 @@ DROP TABLE IF EXISTS specification;
 DROP TABLE IF EXISTS advertisement;
 DROP TABLE IF EXISTS stockpile;
 DROP TABLE IF EXISTS product;
+DROP TABLE IF EXISTS payment_stockpile;
+DROP TABLE IF EXISTS payment_stockpile_archive;
+DROP TABLE IF EXISTS catalog_version;
 
 CREATE TABLE IF NOT EXISTS product
 (
@@ -40,3 +43,33 @@ CREATE TABLE IF NOT EXISTS advertisement
     product_id INTEGER UNSIGNED,
     FOREIGN KEY (product_id) REFERENCES product (id) ON DELETE CASCADE
 ) engine = InnoDB;
+
+CREATE TABLE IF NOT EXISTS payment_stockpile
+(
+    id         INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    pay_id     VARCHAR(100),
+    product_id INTEGER UNSIGNED,
+    stock_op   VARCHAR(20),
+    amount     INTEGER,
+    applied    BOOLEAN DEFAULT TRUE NOT NULL,
+    create_time DATETIME DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE INDEX (pay_id, product_id, stock_op),
+    INDEX (applied),
+    INDEX (create_time)
+) engine = InnoDB;
+
+CREATE TABLE IF NOT EXISTS payment_stockpile_archive
+(
+    id          INTEGER UNSIGNED NOT NULL PRIMARY KEY,
+    pay_id      VARCHAR(100),
+    product_id  INTEGER UNSIGNED,
+    stock_op    VARCHAR(20),
+    amount      INTEGER,
+    create_time DATETIME
+) engine = InnoDB;
+
+CREATE TABLE IF NOT EXISTS catalog_version
+(
+    id      INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    version BIGINT           NOT NULL
+) engine = InnoDB;
@@ -2,13 +2,22 @@ package com.github.fenixsoft.bookstore.warehouse;
 
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.resource.JAXRSResourceBase;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.junit.jupiter.api.Test;
 
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * @author icyfenix@gmail.com
@@ -16,11 +25,51 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
  **/
 class ProductResourceTest extends JAXRSResourceBase {
 
+    @Inject
+    private EntityManagerFactory entityManagerFactory;
+
     @Test
     void getAllProducts() {
         assertOK(get("/products"));
     }
 
+    @Test
+    void getProductsByPage() throws JSONException {
+        JSONArray page = jsonArray(get("/products?limit=3"));
+        assertEquals(3, page.length());
+        int last = page.getJSONObject(2).getInt("id");
+        JSONArray next = jsonArray(get("/products?after=" + last + "&limit=3"));
+        assertTrue(next.getJSONObject(0).getInt("id") > last);
+    }
+
+    @Test
+    void getProductsWithoutNPlusOne() throws JSONException {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        JSONArray page = jsonArray(get("/products?limit=5"));
+        assertEquals(5, page.length());
+        assertTrue(page.getJSONObject(0).has("specifications"));
+        // 一条查询分页的ID，一条关联查询取出商品及其规格，与页面大小无关
+        assertTrue(statistics.getPrepareStatementCount() <= 2, "期望查询语句不超过2条，实际为：" + statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    void getProductSummaries() throws JSONException {
+        JSONArray summaries = jsonArray(get("/products/summaries?limit=2"));
+        assertEquals(2, summaries.length());
+        assertTrue(summaries.getJSONObject(0).has("price"));
+        assertFalse(summaries.getJSONObject(0).has("description"));
+    }
+
+    @Test
+    void searchProducts() throws JSONException {
+        JSONArray osgi = jsonArray(get("/products/search?q=osgi"));
+        assertTrue(osgi.length() > 0);
+        assertEquals(6, osgi.getJSONObject(0).getInt("id"));
+        assertEquals(2, jsonArray(get("/products/search?q=java&limit=2")).length());
+        assertEquals(0, jsonArray(get("/products/search?q=zzqx")).length());
+    }
+
     @Test
     void getProduct() {
         assertOK(get("/products/1"));
@@ -29,6 +78,16 @@ class ProductResourceTest extends JAXRSResourceBase {
         assertEquals("深入理解Java虚拟机（第3版）", book.getTitle());
     }
 
+    @Test
+    void getProductNotModified() {
+        Response response = get("/products/2");
+        assertOK(response);
+        EntityTag tag = response.getEntityTag();
+        assertNotNull(tag);
+        assertEquals(304, build("/products/2").header(HttpHeaders.IF_NONE_MATCH, tag.toString()).get().getStatus());
+        assertOK(build("/products/2").header(HttpHeaders.IF_NONE_MATCH, "\"other\"").get());
+    }
+
     @Test
     void updateProduct() {
         final Product book = get("/products/1").readEntity(Product.class);
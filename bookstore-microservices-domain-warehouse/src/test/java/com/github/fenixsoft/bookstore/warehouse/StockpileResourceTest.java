@@ -3,6 +3,7 @@ package com.github.fenixsoft.bookstore.warehouse;
 import com.github.fenixsoft.bookstore.domain.warehouse.Product;
 import com.github.fenixsoft.bookstore.domain.warehouse.Stockpile;
 import com.github.fenixsoft.bookstore.dto.Item;
+import com.github.fenixsoft.bookstore.infrastructure.jaxrs.CodedMessage;
 import com.github.fenixsoft.bookstore.resource.JAXRSResourceBase;
 import org.junit.jupiter.api.Test;
 
@@ -29,6 +30,29 @@ class StockpileResourceTest extends JAXRSResourceBase {
         });
     }
 
+    @Test
+    void queryStockpiles() {
+        authenticatedService(() -> {
+            // 不存在的产品不出现在结果中
+            List<Stockpile> stocks = get("/products/stockpile?productIds=7&productIds=8&productIds=99").readEntity(new GenericType<List<Stockpile>>() {
+            });
+            assertEquals(2, stocks.size());
+            assertEquals(30, stocks.get(0).getAmount());
+        });
+    }
+
+    @Test
+    void queryAvailabilities() {
+        // 无需登录，不存在的产品不出现在结果中
+        List<Stockpile> stocks = get("/products/stockpile/availability?productIds=7&productIds=8&productIds=99").readEntity(new GenericType<List<Stockpile>>() {
+        });
+        assertEquals(2, stocks.size());
+        assertEquals(30, stocks.get(0).getAmount());
+        assertEquals(0, stocks.get(0).getFrozen());
+        // 不指定商品时不返回全量数据
+        assertBadRequest(get("/products/stockpile/availability"));
+    }
+
     @Test
     void frozenStockpile() {
         authenticatedService(() -> {
@@ -46,6 +70,32 @@ class StockpileResourceTest extends JAXRSResourceBase {
         });
     }
 
+    @Test
+    void frozenStockpileInBatch() {
+        authenticatedService(() -> {
+            // 同一商品出现在多行中时，应合并冻结，并按清单顺序返回商品
+            List<Item> items = Arrays.asList(new Item(2, 4), new Item(1, 5), new Item(3, 4));
+            List<Product> products = patch("/products/stockpile/frozenBySettlement", items).readEntity(new GenericType<List<Product>>() {
+            });
+            assertEquals(3, products.size());
+            assertEquals(4, products.get(0).getId());
+            assertEquals(5, products.get(1).getId());
+            Stockpile stockpile = get("/products/stockpile/4").readEntity(Stockpile.class);
+            assertEquals(25, stockpile.getAmount(), "期望商品4的库存是：25");
+            assertEquals(5, stockpile.getFrozen(), "期望商品4的冻结是：5");
+        });
+    }
+
+    @Test
+    void frozenStockpileInsufficient() {
+        authenticatedService(() -> {
+            // 库存不足时不允许冻结，库存不能变为负数
+            Integer before = get("/products/stockpile/5").readEntity(Stockpile.class).getAmount();
+            assertServerError(patch("/products/stockpile/frozenBySettlement", Collections.singletonList(new Item(before + 1, 5))));
+            assertEquals(before, get("/products/stockpile/5").readEntity(Stockpile.class).getAmount());
+        });
+    }
+
     @Test
     void delivered() {
         authenticatedService(() -> {
@@ -63,4 +113,58 @@ class StockpileResourceTest extends JAXRSResourceBase {
             assertEquals(0, stockpile.getFrozen());
         });
     }
+
+    @Test
+    void deliveredInBatch() {
+        authenticatedService(() -> {
+            assertOK(patch("/products/stockpile/frozenBySettlement", Collections.singletonList(new Item(4, 6))));
+            String payId = UUID.randomUUID().toString();
+            // 一次调用解冻多件商品，找不到库存的商品单独返回失败
+            List<Item> items = Arrays.asList(new Item(2, 6), new Item(5, 99));
+            List<CodedMessage> results = patch("/products/stockpile/delivered?payId=" + payId + "&status=THAWED", items).readEntity(new GenericType<List<CodedMessage>>() {
+            });
+            assertEquals(2, results.size());
+            assertEquals(CodedMessage.CODE_SUCCESS, results.get(0).getCode());
+            assertEquals(CodedMessage.CODE_DEFAULT_FAILURE, results.get(1).getCode());
+            Stockpile stockpile = get("/products/stockpile/6").readEntity(Stockpile.class);
+            assertEquals(28, stockpile.getAmount(), "期望商品6的库存是：28");
+            assertEquals(2, stockpile.getFrozen(), "期望商品6的冻结是：2");
+            // 模拟重复解冻
+            results = patch("/products/stockpile/delivered?payId=" + payId + "&status=THAWED", items).readEntity(new GenericType<List<CodedMessage>>() {
+            });
+            assertEquals(CodedMessage.CODE_SUCCESS, results.get(0).getCode());
+            stockpile = get("/products/stockpile/6").readEntity(Stockpile.class);
+            assertEquals(2, stockpile.getFrozen());
+        });
+    }
+
+    @Test
+    void deliveredRepeatedLines() {
+        authenticatedService(() -> {
+            // 同一商品出现在多行中时，冻结与解冻都应按合并后的数量处理，不能遗留冻结的库存
+            List<Item> items = Arrays.asList(new Item(2, 8), new Item(3, 8));
+            assertOK(patch("/products/stockpile/frozenBySettlement", items));
+            assertEquals(5, get("/products/stockpile/8").readEntity(Stockpile.class).getFrozen());
+            String payId = UUID.randomUUID().toString();
+            List<CodedMessage> results = patch("/products/stockpile/delivered?payId=" + payId + "&status=THAWED", items).readEntity(new GenericType<List<CodedMessage>>() {
+            });
+            assertEquals(2, results.size());
+            results.forEach(r -> assertEquals(CodedMessage.CODE_SUCCESS, r.getCode()));
+            Stockpile stockpile = get("/products/stockpile/8").readEntity(Stockpile.class);
+            assertEquals(30, stockpile.getAmount(), "期望商品8的库存是：30");
+            assertEquals(0, stockpile.getFrozen(), "期望商品8的冻结是：0");
+            // 调整失败的商品，它的每一行都要返回失败，不能把重复的行当作幂等的成功
+            assertAllFailed(Arrays.asList(new Item(1, 99), new Item(2, 99)));
+            assertAllFailed(Arrays.asList(new Item(1, 8), new Item(1, 8)));
+            assertEquals(0, get("/products/stockpile/8").readEntity(Stockpile.class).getFrozen());
+        });
+    }
+
+    private void assertAllFailed(List<Item> items) {
+        String payId = UUID.randomUUID().toString();
+        List<CodedMessage> results = patch("/products/stockpile/delivered?payId=" + payId + "&status=THAWED", items).readEntity(new GenericType<List<CodedMessage>>() {
+        });
+        assertEquals(items.size(), results.size());
+        results.forEach(r -> assertEquals(CodedMessage.CODE_DEFAULT_FAILURE, r.getCode()));
+    }
 }
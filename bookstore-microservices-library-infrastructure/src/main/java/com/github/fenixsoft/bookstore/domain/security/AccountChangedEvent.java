@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.domain.security;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * 用户信息变动事件
+ * <p>
+ * 用户被创建或修改后发布，各服务据此清除本地缓存的认证用户信息
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/14 15:10
+ **/
+public class AccountChangedEvent extends ApplicationEvent {
+
+    private final String username;
+
+    public AccountChangedEvent(Object source, String username) {
+        super(source);
+        this.username = username;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+}
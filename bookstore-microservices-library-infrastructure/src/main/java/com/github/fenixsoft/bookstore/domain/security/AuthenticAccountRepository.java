@@ -18,14 +18,27 @@
 
 package com.github.fenixsoft.bookstore.domain.security;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.fenixsoft.bookstore.domain.account.Account;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
 
+import javax.annotation.PostConstruct;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 认证用户的数据仓库
+ * <p>
+ * 每个带令牌的请求都要根据用户名查询认证用户，查询需远程调用Account服务，因此在调用方缓存查询结果：
+ * 1. 缓存项写入超过refresh时长后，下一次读取会在后台异步刷新，读取者仍立即得到旧值，刷新失败时保留旧值
+ * 2. 超过ttl未能刷新的缓存项才真正过期，由读取者同步加载
+ * 3. 不存在的用户也会缓存（负缓存），但有效期短得多，避免以不存在的用户名反复穿透到Account服务
+ * 4. 收到{@link AccountChangedEvent}时立即清除对应用户；其他节点没有消息总线可以通知，依靠refresh时长保证最终一致
  *
  * @author icyfenix@gmail.com
  * @date 2020/3/8 15:21
@@ -35,8 +48,58 @@ public class AuthenticAccountRepository {
     @Autowired
     private AccountServiceClient userService;
 
+    @Value("${bookstore.security.account-cache.size:10000}")
+    private long size;
+
+    @Value("${bookstore.security.account-cache.refresh:60000}")
+    private long refresh;
+
+    @Value("${bookstore.security.account-cache.ttl:600000}")
+    private long ttl;
+
+    @Value("${bookstore.security.account-cache.negative-ttl:5000}")
+    private long negativeTtl;
+
+    private LoadingCache<String, Optional<AuthenticAccount>> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(size)
+                .refreshAfterWrite(refresh, TimeUnit.MILLISECONDS)
+                .expireAfter(new Expiry<String, Optional<AuthenticAccount>>() {
+                    @Override
+                    public long expireAfterCreate(String key, Optional<AuthenticAccount> value, long currentTime) {
+                        return TimeUnit.MILLISECONDS.toNanos(value.isPresent() ? ttl : negativeTtl);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Optional<AuthenticAccount> value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Optional<AuthenticAccount> value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build(this::load);
+    }
+
     public AuthenticAccount findByUsername(String username) {
+        return cache.get(username).orElse(null);
+    }
+
+    /**
+     * 用户信息变动时清除缓存，处于事务中时在事务提交后才清除，以免清除后立即又加载到未提交前的旧值
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onAccountChanged(AccountChangedEvent event) {
+        cache.invalidate(event.getUsername());
+    }
+
+    private Optional<AuthenticAccount> load(String username) {
         Account account = userService.findByUsername(username);
-        return Optional.ofNullable(account).map(AuthenticAccount::new).orElse(null);
+        return Optional.ofNullable(account).map(AuthenticAccount::new);
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.domain.security;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * 由JWT令牌负载直接还原的认证用户
+ * <p>
+ * 用户名、授权和用户ID都来自令牌本身，不需要查询Account服务；
+ * 只有在访问姓名、电话等令牌中没有的资料时，才会通过加载器查询一次完整的用户信息，查询结果保存在本对象中。
+ * 验签通过的认证信息会被JWTAccessTokenService缓存，同一个本对象会在多个请求间复用，
+ * 因此已加载的资料最多可能陈旧token-cache.max-ttl的时间，与令牌负载本身的陈旧程度相同。
+ * 令牌签发后账户被删除时，访问这些资料会抛出{@link UsernameNotFoundException}
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/14 16:40
+ **/
+public class ClaimsAuthenticAccount extends AuthenticAccount {
+
+    private final transient Supplier<AuthenticAccount> loader;
+
+    private transient volatile AuthenticAccount detail;
+
+    public ClaimsAuthenticAccount(String username, Integer id, Collection<GrantedAuthority> authorities, Supplier<AuthenticAccount> loader) {
+        setUsername(username);
+        setId(id);
+        setAuthorities(authorities);
+        this.loader = loader;
+    }
+
+    /**
+     * 令牌中没有用户ID（旧版本签发的令牌）时，从完整的用户信息中获取
+     */
+    @Override
+    public Integer getId() {
+        Integer id = super.getId();
+        return id != null ? id : detail().getId();
+    }
+
+    @Override
+    public String getPassword() {
+        return detail().getPassword();
+    }
+
+    @Override
+    public String getName() {
+        return detail().getName();
+    }
+
+    @Override
+    public String getAvatar() {
+        return detail().getAvatar();
+    }
+
+    @Override
+    public String getTelephone() {
+        return detail().getTelephone();
+    }
+
+    @Override
+    public String getEmail() {
+        return detail().getEmail();
+    }
+
+    @Override
+    public String getLocation() {
+        return detail().getLocation();
+    }
+
+    private AuthenticAccount detail() {
+        AuthenticAccount current = detail;
+        if (current == null) {
+            synchronized (this) {
+                if (detail == null) {
+                    AuthenticAccount loaded = loader.get();
+                    if (loaded == null) {
+                        throw new UsernameNotFoundException("未找到该用户:" + getUsername());
+                    }
+                    detail = loaded;
+                }
+                current = detail;
+            }
+        }
+        return current;
+    }
+}
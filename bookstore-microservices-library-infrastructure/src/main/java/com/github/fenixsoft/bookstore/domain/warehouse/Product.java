@@ -29,13 +29,19 @@ import java.util.Set;
 
 /**
  * 商品对象模型
+ * <p>
+ * 商品规格默认延迟加载，列表查询通过名为“Product.specifications”的实体图以一条关联查询同时取出规格
  *
  * @author icyfenix@gmail.com
  * @date 2020/3/6 10:43
  */
 @Entity
+@NamedEntityGraph(name = Product.SPECIFICATIONS_GRAPH, attributeNodes = @NamedAttributeNode("specifications"))
 public class Product extends BaseEntity {
 
+    public static final String SPECIFICATIONS_GRAPH = "Product.specifications";
+
+
     @NotEmpty(message = "商品名称不允许为空")
     private String title;
 
@@ -54,7 +60,7 @@ public class Product extends BaseEntity {
 
     private String detail;
 
-    @OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    @OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumn(name = "product_id")
     private Set<Specification> specifications;
 
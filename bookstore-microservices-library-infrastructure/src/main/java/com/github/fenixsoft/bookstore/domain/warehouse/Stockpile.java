@@ -54,6 +54,10 @@ public class Stockpile extends BaseEntity {
         return frozen;
     }
 
+    public void setFrozen(Integer frozen) {
+        this.frozen = frozen;
+    }
+
     public void frozen(Integer number) {
         this.amount -= number;
         this.frozen += number;
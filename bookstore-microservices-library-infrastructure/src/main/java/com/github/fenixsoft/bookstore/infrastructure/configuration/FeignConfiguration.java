@@ -2,14 +2,17 @@ package com.github.fenixsoft.bookstore.infrastructure.configuration;
 
 import feign.Contract;
 import feign.RequestInterceptor;
+import com.github.fenixsoft.bookstore.infrastructure.security.ServiceTokenManager;
 import feign.jaxrs2.JAXRS2Contract;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.openfeign.EnableFeignClients;
-import org.springframework.cloud.security.oauth2.client.feign.OAuth2FeignRequestInterceptor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
-import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.http.HttpHeaders;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
 
 import javax.inject.Inject;
 
@@ -17,7 +20,8 @@ import javax.inject.Inject;
  * 启动FeignClient扫描，并配置：
  * 1. 并指定包包扫描地址
  * 2. 设置交互为JAX-RS2方式，实际Feign中的JAX-RS2指的是1.1
- * 3. 在请求时自动加入基于OAuth2的客户端模式认证的Header
+ * 3. 在请求时自动加入基于OAuth2的客户端模式认证的Header，令牌由{@link ServiceTokenManager}在后台提前刷新
+ * 4. 底层HTTP连接池见{@link FeignHttpClientConfiguration}
  *
  * @author icyfenix@gmail.com
  * @date 2020/4/18 22:38
@@ -35,9 +39,18 @@ public class FeignConfiguration {
         return new JAXRS2Contract();
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public ServiceTokenManager serviceTokenManager(MeterRegistry registry,
+                                                   @Value("${bookstore.security.service-token.refresh-ratio:0.8}") double refreshRatio) {
+        return new ServiceTokenManager(resource, refreshRatio, registry);
+    }
+
     @Bean
-    public RequestInterceptor oauth2FeignRequestInterceptor() {
-        return new OAuth2FeignRequestInterceptor(new DefaultOAuth2ClientContext(), resource);
+    public RequestInterceptor oauth2FeignRequestInterceptor(ServiceTokenManager tokenManager) {
+        return template -> {
+            template.header(HttpHeaders.AUTHORIZATION);
+            template.header(HttpHeaders.AUTHORIZATION, OAuth2AccessToken.BEARER_TYPE + " " + tokenManager.getToken().getValue());
+        };
     }
 
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.infrastructure.configuration;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.openfeign.support.FeignHttpClientProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * FeignClient使用的Apache HttpClient连接池
+ * <p>
+ * 取代OpenFeign自动配置的连接池与HttpClient：
+ * 1. 总连接数、每个服务实例（路由）的连接数、连接存活时间仍由feign.httpclient.*配置
+ * 2. 增加空闲连接校验、空闲连接回收、Keep-Alive时长与从连接池获取连接的超时，由bookstore.feign.pool.*配置，
+ * 默认的获取连接超时是无限等待，连接池耗尽时请求会一直挂起
+ * 3. 以feign.http.pool.*指标输出连接池中租用、等待、空闲的连接数，以及获取连接的等待时间与超时次数
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 10:20
+ **/
+@Configuration
+@Profile("!test")
+public class FeignHttpClientConfiguration {
+
+    @Bean(destroyMethod = "shutdown")
+    public PoolingHttpClientConnectionManager feignConnectionManager(FeignHttpClientProperties properties, MeterRegistry registry,
+                                                                     @Value("${bookstore.feign.pool.validate-after-inactivity:2000}") int validateAfterInactivity) {
+        PoolingHttpClientConnectionManager manager = new LeaseTimingConnectionManager(properties, registry);
+        manager.setMaxTotal(properties.getMaxConnections());
+        manager.setDefaultMaxPerRoute(properties.getMaxConnectionsPerRoute());
+        manager.setValidateAfterInactivity(validateAfterInactivity);
+        gauge(registry, "feign.http.pool.leased", manager, PoolStats::getLeased);
+        gauge(registry, "feign.http.pool.pending", manager, PoolStats::getPending);
+        gauge(registry, "feign.http.pool.available", manager, PoolStats::getAvailable);
+        gauge(registry, "feign.http.pool.max", manager, PoolStats::getMax);
+        return manager;
+    }
+
+    @Bean
+    public CloseableHttpClient feignHttpClient(PoolingHttpClientConnectionManager manager, FeignHttpClientProperties properties,
+                                               @Value("${bookstore.feign.pool.lease-timeout:1000}") int leaseTimeout,
+                                               @Value("${bookstore.feign.pool.keep-alive:30000}") long keepAlive,
+                                               @Value("${bookstore.feign.pool.idle-timeout:60000}") long idleTimeout) {
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(properties.getConnectionTimeout())
+                .setConnectionRequestTimeout(leaseTimeout)
+                .setRedirectsEnabled(properties.isFollowRedirects())
+                .build();
+        return HttpClientBuilder.create()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(config)
+                // 服务端以Keep-Alive头指定了时长则取两者中较短的一个，未指定时不再无限期保留连接
+                .setKeepAliveStrategy((response, context) -> {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static void gauge(MeterRegistry registry, String name, PoolingHttpClientConnectionManager manager, ToIntFunction<PoolStats> stat) {
+        Gauge.builder(name, manager, m -> stat.applyAsInt(m.getTotalStats())).register(registry);
+    }
+
+    /**
+     * 记录每次从连接池获取连接的等待时间，获取超时说明连接池已经耗尽
+     */
+    private static class LeaseTimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final Timer leaseTimer;
+
+        private final Counter leaseTimeouts;
+
+        LeaseTimingConnectionManager(FeignHttpClientProperties properties, MeterRegistry registry) {
+            super(properties.getTimeToLive(), properties.getTimeToLiveUnit());
+            this.leaseTimer = registry.timer("feign.http.pool.lease");
+            this.leaseTimeouts = registry.counter("feign.http.pool.lease.timeout");
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, unit);
+                    } catch (ConnectionPoolTimeoutException e) {
+                        leaseTimeouts.increment();
+                        throw e;
+                    } finally {
+                        leaseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+    }
+}
@@ -19,7 +19,9 @@
 package com.github.fenixsoft.bookstore.infrastructure.configuration;
 
 import com.github.fenixsoft.bookstore.infrastructure.security.JWTAccessTokenService;
+import com.github.fenixsoft.bookstore.infrastructure.security.TrustedPrincipalFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -30,11 +32,14 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
 import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
 import org.springframework.security.oauth2.config.annotation.web.configurers.ResourceServerSecurityConfigurer;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.security.RolesAllowed;
 
 /**
@@ -54,9 +59,36 @@ import javax.annotation.security.RolesAllowed;
 @EnableGlobalMethodSecurity(prePostEnabled = true, jsr250Enabled = true)
 public class ResourceServerConfiguration extends ResourceServerConfigurerAdapter {
 
+    /**
+     * 资源ID，与{@link ResourceServerSecurityConfigurer}的默认值一致
+     */
+    private static final String RESOURCE_ID = "oauth2-resource";
+
     @Autowired
     private JWTAccessTokenService tokenService;
 
+    @Autowired
+    private UserDetailsService userDetailsService;
+
+    /**
+     * 是否信任网关转发的内部用户凭证，见{@link TrustedPrincipalFilter}
+     */
+    @Value("${bookstore.security.trusted-principal.enabled:false}")
+    private boolean trustedPrincipal;
+
+    @Value("${bookstore.security.trusted-principal.secret:}")
+    private String trustedPrincipalSecret;
+
+    /**
+     * 开启内部用户凭证但密钥不可用时拒绝启动
+     */
+    @PostConstruct
+    public void checkTrustedPrincipal() {
+        if (trustedPrincipal) {
+            TrustedPrincipalFilter.checkSecret(trustedPrincipalSecret);
+        }
+    }
+
     /**
      * 配置HTTP访问相关的安全选项
      */
@@ -75,11 +107,17 @@ public class ResourceServerConfiguration extends ResourceServerConfigurerAdapter
         // 在方法安全层面，每个方法上设置所需要的认证、授权规则
         // 即采用方式二来控制权限
         http.authorizeRequests().anyRequest().permitAll();
+        // 信任网关的内部用户凭证时，在OAuth2的资源过滤器之前还原用户
+        if (trustedPrincipal) {
+            http.addFilterAfter(new TrustedPrincipalFilter(trustedPrincipalSecret, RESOURCE_ID, userDetailsService), SecurityContextPersistenceFilter.class);
+        }
     }
 
     @Override
     public void configure(ResourceServerSecurityConfigurer resources) {
-        resources.tokenServices(tokenService);
+        resources.tokenServices(tokenService).resourceId(RESOURCE_ID);
+        // 无状态模式下，OAuth2的资源过滤器在请求没有令牌时会清空安全上下文，这会抹掉由内部用户凭证还原的用户
+        resources.stateless(!trustedPrincipal);
     }
 
     @Bean
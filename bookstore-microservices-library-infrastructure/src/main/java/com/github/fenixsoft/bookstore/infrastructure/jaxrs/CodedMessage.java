@@ -45,6 +45,9 @@ public class CodedMessage {
     private String message;
     private Object data;
 
+    public CodedMessage() {
+    }
+
     public CodedMessage(Integer code, String message) {
         setCode(code);
         setMessage(message);
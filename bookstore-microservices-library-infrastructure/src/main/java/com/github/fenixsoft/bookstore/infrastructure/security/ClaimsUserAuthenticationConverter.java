@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import com.github.fenixsoft.bookstore.domain.security.AuthenticAccount;
+import com.github.fenixsoft.bookstore.domain.security.ClaimsAuthenticAccount;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.oauth2.provider.token.DefaultUserAuthenticationConverter;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 直接由令牌负载还原用户的转换器
+ * <p>
+ * 默认的{@link DefaultUserAuthenticationConverter}设置了{@link UserDetailsService}后，每次解码令牌都要按用户名查询一次用户，
+ * 而鉴权所需的授权信息其实已经在令牌的authorities中了。此转换器以令牌中的用户名、用户ID与授权构造{@link ClaimsAuthenticAccount}，
+ * 认证过程不再有任何远程调用，只有业务代码确实用到令牌之外的用户资料时，才延迟查询用户信息
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/14 16:55
+ **/
+public class ClaimsUserAuthenticationConverter extends DefaultUserAuthenticationConverter {
+
+    public static final String ACCOUNT_ID = "account_id";
+
+    private final UserDetailsService userDetailsService;
+
+    public ClaimsUserAuthenticationConverter(UserDetailsService userDetailsService) {
+        this.userDetailsService = userDetailsService;
+    }
+
+    @Override
+    public Authentication extractAuthentication(Map<String, ?> map) {
+        if (!map.containsKey(USERNAME)) {
+            return null;
+        }
+        String username = (String) map.get(USERNAME);
+        Object id = map.get(ACCOUNT_ID);
+        Collection<GrantedAuthority> authorities = authorities(map.get(AUTHORITIES));
+        ClaimsAuthenticAccount principal = new ClaimsAuthenticAccount(username, id instanceof Number ? ((Number) id).intValue() : null, authorities,
+                () -> (AuthenticAccount) userDetailsService.loadUserByUsername(username));
+        return new UsernamePasswordAuthenticationToken(principal, "N/A", authorities);
+    }
+
+    private static Collection<GrantedAuthority> authorities(Object claim) {
+        if (claim instanceof String) {
+            return new ArrayList<>(AuthorityUtils.commaSeparatedStringToAuthorityList((String) claim));
+        } else if (claim instanceof Collection) {
+            return new ArrayList<>(AuthorityUtils.commaSeparatedStringToAuthorityList(StringUtils.collectionToCommaDelimitedString((Collection<?>) claim)));
+        } else {
+            return new ArrayList<>();
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package com.github.fenixsoft.bookstore.infrastructure.security;
 
+import com.github.fenixsoft.bookstore.domain.account.Account;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetailsService;
@@ -33,6 +35,7 @@ import org.springframework.security.oauth2.provider.token.DefaultUserAuthenticat
 import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
 import org.springframework.util.ReflectionUtils;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.lang.reflect.Field;
@@ -57,9 +60,17 @@ import java.util.Map;
  */
 public class JWTAccessToken extends JwtAccessTokenConverter {
 
+    private final UserDetailsService userDetailsService;
+
+    /**
+     * 是否直接由令牌负载还原用户，而不是每次解码令牌都查询用户，见{@link ClaimsUserAuthenticationConverter}
+     */
+    @Value("${bookstore.security.jwt.claims-principal:false}")
+    private boolean claimsPrincipal;
 
     @Inject
     public JWTAccessToken(UserDetailsService userDetailsService) {
+        this.userDetailsService = userDetailsService;
         // 设置从资源请求中带上来的JWT令牌转换回安全上下文中的用户信息的查询服务
         // 如果不设置该服务，则从JWT令牌获得的Principal就只有一个用户名（令牌中确实就只存了用户名）
         // 将用户用户信息查询服务提供给默认的令牌转换器，使得转换令牌时自动根据用户名还原出完整的用户对象
@@ -69,6 +80,13 @@ public class JWTAccessToken extends JwtAccessTokenConverter {
         ((DefaultAccessTokenConverter) getAccessTokenConverter()).setUserTokenConverter(converter);
     }
 
+    @PostConstruct
+    public void init() {
+        if (claimsPrincipal) {
+            ((DefaultAccessTokenConverter) getAccessTokenConverter()).setUserTokenConverter(new ClaimsUserAuthenticationConverter(userDetailsService));
+        }
+    }
+
     /**
      * 增强令牌
      * 增强主要就是在令牌的负载中加入额外的信息
@@ -84,6 +102,10 @@ public class JWTAccessToken extends JwtAccessTokenConverter {
             // 这里主要是出于演示Payload的用途，以及方便客户端获取（否则客户端要从令牌中解码Base64来获取），设置了一个“username”，两者的内容是一致的
             payLoad.put("username", user.getName());
             payLoad.put("authorities", authorities);
+            // 用户ID供资源服务直接由令牌还原用户，见ClaimsUserAuthenticationConverter
+            if (user.getPrincipal() instanceof Account) {
+                payLoad.put(ClaimsUserAuthenticationConverter.ACCOUNT_ID, ((Account) user.getPrincipal()).getId());
+            }
             payLoad.put("iss", "icyfenix@gmail.com");
             payLoad.put("sub", "bookstore");
             ((DefaultOAuth2AccessToken) accessToken).setAdditionalInformation(payLoad);
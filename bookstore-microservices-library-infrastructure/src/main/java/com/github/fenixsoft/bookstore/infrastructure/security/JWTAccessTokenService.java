@@ -18,20 +18,43 @@
 
 package com.github.fenixsoft.bookstore.infrastructure.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.fenixsoft.bookstore.domain.security.AccountChangedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationManager;
 import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
 import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * JWT访问令牌服务
  * <p>
  * 在此服务中提供了令牌如何存储、携带哪些信息、如何签名、持续多长时间等相关内容的定义
  * 令牌服务应当会被授权服务器注册验证Endpoint时候调用到
+ * <p>
+ * 资源服务每个请求都要以{@link #loadAuthentication(String)}校验令牌，RSA验签与解析负载JSON的开销不小，而同一个令牌会被反复使用数天。
+ * 因此将验签通过的认证信息按令牌的SHA-256摘要缓存起来，缓存时长不超过令牌的过期时间，也不超过max-ttl（限制令牌中用户信息的陈旧程度）
  *
  * @author icyfenix@gmail.com
  * @date 2020/3/8 11:07
@@ -39,13 +62,18 @@ import java.util.Optional;
 @Named
 public class JWTAccessTokenService extends DefaultTokenServices {
 
+    private final Cache<String, Verified> verified;
+
     /**
      * 构建JWT令牌，并进行默认的配置
      */
     @Inject
     public JWTAccessTokenService(JWTAccessToken token,
                                  OAuthClientDetailsService clientService,
-                                 Optional<AuthenticationManager> authenticationManager) {
+                                 Optional<AuthenticationManager> authenticationManager,
+                                 MeterRegistry registry,
+                                 @Value("${bookstore.security.token-cache.size:10000}") long cacheSize,
+                                 @Value("${bookstore.security.token-cache.max-ttl:600000}") long cacheMaxTtl) {
         // 设置令牌的持久化容器
         // 令牌持久化有多种方式，单节点服务可以存放在Session中，集群可以存放在Redis中
         // 而JWT是后端无状态、前端存储的解决方案，Token的存储由前端完成
@@ -71,5 +99,81 @@ public class JWTAccessTokenService extends DefaultTokenServices {
         // 是否复用refresh_token，默认为true
         // 如果为false，则每次请求刷新都会删除旧的refresh_token，创建新的refresh_token
         setReuseRefreshToken(true);
+
+        verified = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfter(new Expiry<String, Verified>() {
+                    @Override
+                    public long expireAfterCreate(String key, Verified value, long currentTime) {
+                        long remaining = value.expiresAt - System.currentTimeMillis();
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, Math.min(remaining, cacheMaxTtl)));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Verified value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Verified value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, verified, "jwt.verified");
+    }
+
+    /**
+     * 校验令牌并还原认证信息，命中缓存时跳过验签与解析
+     * 认证管理器会在返回的认证对象上设置本次请求的细节，因此每次都返回一个新的浅拷贝，不共享缓存中的对象
+     */
+    @Override
+    public OAuth2Authentication loadAuthentication(String accessTokenValue) throws AuthenticationException, InvalidTokenException {
+        String key = digest(accessTokenValue);
+        Verified hit = verified.getIfPresent(key);
+        if (hit == null || hit.expiresAt <= System.currentTimeMillis()) {
+            OAuth2Authentication authentication = super.loadAuthentication(accessTokenValue);
+            hit = new Verified(authentication, expiresAt(accessTokenValue));
+            verified.put(key, hit);
+        }
+        return new OAuth2Authentication(hit.authentication.getOAuth2Request(), hit.authentication.getUserAuthentication());
+    }
+
+    /**
+     * 用户信息变动的事务提交后，清除该用户所有令牌的缓存，以免继续使用旧的用户信息
+     * 在提交前清除的话，并发的请求可能在提交前又把旧的信息放回缓存。
+     * 该事件只在Account服务内发布，其他服务收不到，它们缓存的用户信息最多陈旧token-cache.max-ttl的时间
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onAccountChanged(AccountChangedEvent event) {
+        verified.asMap().values().removeIf(v -> Objects.equals(event.getUsername(), v.authentication.getName()));
+    }
+
+    /**
+     * 令牌已通过验签，这里只读出过期时间，不再验签
+     */
+    private static long expiresAt(String accessTokenValue) {
+        Object exp = JsonParserFactory.create().parseMap(JwtHelper.decode(accessTokenValue).getClaims()).get("exp");
+        return exp instanceof Number ? ((Number) exp).longValue() * 1000 : 0;
+    }
+
+    private static String digest(String accessTokenValue) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(accessTokenValue.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Verified {
+        final OAuth2Authentication authentication;
+        final long expiresAt;
+
+        Verified(OAuth2Authentication authentication, long expiresAt) {
+            this.authentication = authentication;
+            this.expiresAt = expiresAt;
+        }
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 微服务之间调用所用的客户端模式令牌管理器
+ * <p>
+ * 原来每个服务的Feign拦截器各自持有令牌，令牌过期后的第一个调用要同步地向安全服务申请新令牌，并发的调用会同时涌向/oauth/token。
+ * 这里由后台线程在令牌有效期过去refresh-ratio后提前申请新令牌，用户请求总能直接拿到有效的令牌；
+ * 只有启动后第一次取得令牌之前或者提前刷新一直失败直至令牌过期时，调用者才需要等待，并且同一时刻只有一个申请在进行（single-flight），其余调用者等待同一个结果
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 14:30
+ **/
+public class ServiceTokenManager {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceTokenManager.class);
+
+    /**
+     * 令牌剩余有效期小于此值即视为已过期，避免令牌在传输途中过期
+     */
+    private static final long EXPIRY_SKEW_MILLIS = 5000;
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    private final OAuth2ProtectedResourceDetails resource;
+
+    private final AccessTokenProvider provider;
+
+    private final double refreshRatio;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "service-token-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile OAuth2AccessToken current;
+
+    private final AtomicReference<CompletableFuture<OAuth2AccessToken>> inflight = new AtomicReference<>();
+
+    private final Timer acquisition;
+    private final Counter failure;
+    private final Counter blocked;
+
+    /**
+     * @param refreshRatio 令牌有效期过去多少比例后开始提前刷新，取值(0, 1)
+     */
+    public ServiceTokenManager(OAuth2ProtectedResourceDetails resource, double refreshRatio, MeterRegistry registry) {
+        this(resource, new ClientCredentialsAccessTokenProvider(), refreshRatio, registry);
+    }
+
+    ServiceTokenManager(OAuth2ProtectedResourceDetails resource, AccessTokenProvider provider, double refreshRatio, MeterRegistry registry) {
+        this.resource = resource;
+        this.provider = provider;
+        this.refreshRatio = refreshRatio;
+        this.acquisition = Timer.builder("service.token.acquire").description("向安全服务申请令牌的耗时").register(registry);
+        this.failure = Counter.builder("service.token.failure").description("申请令牌失败的次数").register(registry);
+        this.blocked = Counter.builder("service.token.blocked").description("调用者因没有有效令牌而等待申请的次数").register(registry);
+        Gauge.builder("service.token.ttl", this, m -> m.remainingMillis() / 1000.0).description("当前令牌的剩余有效时间（秒）").register(registry);
+        // 启动时就在后台申请令牌，安全服务尚未就绪时按退避间隔重试，不阻塞启动
+        scheduler.execute(() -> refresh(MIN_RETRY_MILLIS));
+    }
+
+    /**
+     * 获取有效的令牌，正常情况下直接返回后台刷新好的令牌
+     */
+    public OAuth2AccessToken getToken() {
+        OAuth2AccessToken token = current;
+        if (isValid(token)) {
+            return token;
+        }
+        blocked.increment();
+        try {
+            return acquire(false).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待服务令牌时被中断", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 申请新令牌，已有申请在进行时直接共享它的结果
+     *
+     * @param refresh 后台提前刷新时为true，即使当前令牌仍然有效也要申请；调用者等待时为false，
+     *                若在它发现令牌无效之后、抢到申请权之前，另一个申请刚好完成，则直接使用其结果，不再重复申请
+     */
+    private CompletableFuture<OAuth2AccessToken> acquire(boolean refresh) {
+        CompletableFuture<OAuth2AccessToken> future = new CompletableFuture<>();
+        if (!inflight.compareAndSet(null, future)) {
+            CompletableFuture<OAuth2AccessToken> existing = inflight.get();
+            if (existing != null) {
+                return existing;
+            }
+            return acquire(refresh);
+        }
+        OAuth2AccessToken valid = current;
+        if (!refresh && isValid(valid)) {
+            inflight.set(null);
+            future.complete(valid);
+            return future;
+        }
+        try {
+            OAuth2AccessToken token = acquisition.recordCallable(() -> provider.obtainAccessToken(resource, new DefaultAccessTokenRequest()));
+            current = token;
+            future.complete(token);
+        } catch (Exception e) {
+            failure.increment();
+            future.completeExceptionally(e);
+        } finally {
+            inflight.set(null);
+        }
+        return future;
+    }
+
+    /**
+     * 后台刷新令牌，成功后按令牌有效期安排下一次刷新，失败时按指数退避重试
+     */
+    private void refresh(long retryDelay) {
+        try {
+            OAuth2AccessToken token = acquire(true).join();
+            if (token.getExpiration() == null) {
+                // 永不过期的令牌无需刷新
+                return;
+            }
+            long lifetime = token.getExpiration().getTime() - System.currentTimeMillis();
+            long delay = Math.max((long) (lifetime * refreshRatio), MIN_RETRY_MILLIS);
+            log.debug("服务令牌已刷新，{}毫秒后再次刷新", delay);
+            scheduler.schedule(() -> refresh(MIN_RETRY_MILLIS), delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            log.warn("刷新服务令牌失败，{}毫秒后重试：{}", retryDelay, e.getMessage());
+            scheduler.schedule(() -> refresh(Math.min(retryDelay * 2, MAX_RETRY_MILLIS)), retryDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long remainingMillis() {
+        OAuth2AccessToken token = current;
+        return token == null || token.getExpiration() == null ? 0 : Math.max(token.getExpiration().getTime() - System.currentTimeMillis(), 0);
+    }
+
+    private static boolean isValid(OAuth2AccessToken token) {
+        return token != null && (token.getExpiration() == null || token.getExpiration().getTime() - System.currentTimeMillis() > EXPIRY_SKEW_MILLIS);
+    }
+}
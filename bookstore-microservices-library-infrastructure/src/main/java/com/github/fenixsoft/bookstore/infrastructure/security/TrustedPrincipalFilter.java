@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2020. the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. More information from:
+ *
+ *        https://github.com/fenixsoft
+ */
+
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 信任网关转发的内部用户凭证
+ * <p>
+ * 网关已经校验过JWT令牌，并把鉴权所需的负载以HMAC-SHA256签名后放在X-Bookstore-Principal中转发过来（见网关的TrustedPrincipalFilter）。
+ * 凭证的签名与有效期校验通过时，直接由其中的负载还原认证信息，并对后续的过滤器隐藏Authorization，
+ * 使OAuth2的资源过滤器不再重复验签；凭证缺失或无效时不做任何处理，仍按原来的方式校验令牌。
+ * 与OAuth2的资源过滤器一样，凭证中的aud不为空时必须包含本服务的资源ID。
+ * <p>
+ * 能直接访问服务的人只要知道密钥就能签发任意用户（包括管理员）的凭证，因此密钥没有默认值，长度不足{@link #MIN_SECRET_LENGTH}字节时拒绝启动
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 11:20
+ **/
+public class TrustedPrincipalFilter extends OncePerRequestFilter {
+
+    public static final String HEADER = "X-Bookstore-Principal";
+
+    /**
+     * 密钥的最短长度（字节），与HMAC-SHA256的输出长度相同
+     */
+    public static final int MIN_SECRET_LENGTH = 32;
+
+    private final SecretKeySpec key;
+
+    private final DefaultAccessTokenConverter converter = new DefaultAccessTokenConverter();
+
+    private final JsonParser parser = JsonParserFactory.create();
+
+    private final String resourceId;
+
+    public TrustedPrincipalFilter(String secret, String resourceId, UserDetailsService userDetailsService) {
+        this.key = new SecretKeySpec(checkSecret(secret), "HmacSHA256");
+        this.resourceId = resourceId;
+        converter.setUserTokenConverter(new ClaimsUserAuthenticationConverter(userDetailsService));
+    }
+
+    /**
+     * 检查密钥是否可用，不可用时抛出IllegalStateException使服务启动失败
+     */
+    public static byte[] checkSecret(String secret) {
+        byte[] bytes = secret == null ? new byte[0] : secret.trim().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < MIN_SECRET_LENGTH) {
+            throw new IllegalStateException("已开启trusted-principal，但密钥为空或短于" + MIN_SECRET_LENGTH + "字节，请通过PRINCIPAL_SECRET设置");
+        }
+        return bytes;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        Map<String, Object> claims = verify(request.getHeader(HEADER));
+        if (claims == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        OAuth2Authentication authentication = converter.extractAuthentication(claims);
+        Set<String> resourceIds = authentication.getOAuth2Request().getResourceIds();
+        if (resourceId != null && resourceIds != null && !resourceIds.isEmpty() && !resourceIds.contains(resourceId)) {
+            // 不属于本服务的凭证，交由OAuth2的资源过滤器按令牌处理
+            chain.doFilter(request, response);
+            return;
+        }
+        authentication.setAuthenticated(true);
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+        chain.doFilter(new HttpServletRequestWrapper(request) {
+            @Override
+            public String getHeader(String name) {
+                return HttpHeaders.AUTHORIZATION.equalsIgnoreCase(name) ? null : super.getHeader(name);
+            }
+
+            @Override
+            public Enumeration<String> getHeaders(String name) {
+                return HttpHeaders.AUTHORIZATION.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+            }
+        }, response);
+    }
+
+    /**
+     * 校验签名与过期时间，通过时返回负载，否则返回null
+     */
+    private Map<String, Object> verify(String principal) {
+        if (principal == null || principal.isEmpty()) {
+            return null;
+        }
+        int dot = principal.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String payload = principal.substring(0, dot);
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            byte[] expected = mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+            if (!MessageDigest.isEqual(expected, Base64.getUrlDecoder().decode(principal.substring(dot + 1)))) {
+                return null;
+            }
+            Map<String, Object> claims = parser.parseMap(new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8));
+            Object exp = claims.get("exp");
+            return exp instanceof Number && ((Number) exp).longValue() * 1000 > System.currentTimeMillis() ? claims : null;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.fenixsoft.bookstore.domain.security;
+
+import com.github.fenixsoft.bookstore.domain.account.Account;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 18:40
+ **/
+class AuthenticAccountRepositoryTest {
+
+    /**
+     * 远程调用Account服务的次数
+     */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final AuthenticAccountRepository repository = new AuthenticAccountRepository();
+
+    @BeforeEach
+    void init() {
+        AccountServiceClient client = username -> {
+            calls.incrementAndGet();
+            if (!"icyfenix".equals(username)) {
+                return null;
+            }
+            Account account = new Account();
+            account.setId(1);
+            account.setUsername(username);
+            account.setTelephone("18888888888");
+            return account;
+        };
+        ReflectionTestUtils.setField(repository, "userService", client);
+        ReflectionTestUtils.setField(repository, "size", 100L);
+        ReflectionTestUtils.setField(repository, "refresh", 60000L);
+        ReflectionTestUtils.setField(repository, "ttl", 600000L);
+        ReflectionTestUtils.setField(repository, "negativeTtl", 200L);
+        repository.init();
+    }
+
+    @Test
+    void cacheAccount() {
+        assertEquals("18888888888", repository.findByUsername("icyfenix").getTelephone());
+        assertEquals("18888888888", repository.findByUsername("icyfenix").getTelephone());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void cacheMissingAccount() throws InterruptedException {
+        assertNull(repository.findByUsername("nobody"));
+        assertNull(repository.findByUsername("nobody"));
+        assertEquals(1, calls.get());
+        // 负缓存的有效期短得多，过期后重新查询
+        Thread.sleep(400);
+        assertNull(repository.findByUsername("nobody"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void evictOnAccountChanged() {
+        repository.findByUsername("icyfenix");
+        repository.findByUsername("nobody");
+        repository.onAccountChanged(new AccountChangedEvent(this, "icyfenix"));
+        // 只清除变动用户的缓存
+        repository.findByUsername("nobody");
+        assertEquals(2, calls.get());
+        repository.findByUsername("icyfenix");
+        assertEquals(3, calls.get());
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.fenixsoft.bookstore.domain.security;
+
+import com.github.fenixsoft.bookstore.domain.account.Account;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 18:55
+ **/
+class ClaimsAuthenticAccountTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void loadDetailOnDemand() {
+        ClaimsAuthenticAccount principal = new ClaimsAuthenticAccount("icyfenix", 1, AuthorityUtils.createAuthorityList(Role.USER), () -> {
+            loads.incrementAndGet();
+            Account account = new Account();
+            account.setId(1);
+            account.setUsername("icyfenix");
+            account.setName("周志明");
+            account.setTelephone("18888888888");
+            return new AuthenticAccount(account);
+        });
+        // 令牌中已有的信息不需要查询用户
+        assertEquals("icyfenix", principal.getUsername());
+        assertEquals(1, principal.getId());
+        assertTrue(principal.getAuthorities().stream().anyMatch(a -> Role.USER.equals(a.getAuthority())));
+        assertEquals(0, loads.get());
+        // 令牌之外的资料只查询一次
+        assertEquals("周志明", principal.getName());
+        assertEquals("18888888888", principal.getTelephone());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void deletedAccount() {
+        ClaimsAuthenticAccount principal = new ClaimsAuthenticAccount("icyfenix", null, AuthorityUtils.createAuthorityList(Role.USER), () -> {
+            loads.incrementAndGet();
+            return null;
+        });
+        assertEquals("icyfenix", principal.getUsername());
+        // 令牌签发后账户已被删除，访问令牌之外的资料时明确报告用户不存在
+        assertThrows(UsernameNotFoundException.class, principal::getName);
+        assertThrows(UsernameNotFoundException.class, principal::getId);
+        // 加载失败不会被当作结果保存下来
+        assertEquals(2, loads.get());
+    }
+}
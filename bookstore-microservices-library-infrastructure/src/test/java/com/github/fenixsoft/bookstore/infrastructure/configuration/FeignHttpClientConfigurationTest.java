@@ -0,0 +1,46 @@
+package com.github.fenixsoft.bookstore.infrastructure.configuration;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.openfeign.support.FeignHttpClientProperties;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 19:10
+ **/
+class FeignHttpClientConfigurationTest {
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("localhost", 8080));
+
+    @Test
+    void leaseTimeoutWhenExhausted() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FeignHttpClientProperties properties = new FeignHttpClientProperties();
+        properties.setMaxConnections(1);
+        properties.setMaxConnectionsPerRoute(1);
+        PoolingHttpClientConnectionManager manager = new FeignHttpClientConfiguration().feignConnectionManager(properties, registry, 2000);
+        try {
+            HttpClientConnection leased = manager.requestConnection(ROUTE, null).get(1, TimeUnit.SECONDS);
+            assertEquals(1, registry.get("feign.http.pool.leased").gauge().value());
+            // 连接池耗尽时在超时后失败，而不是一直挂起
+            assertThrows(ConnectionPoolTimeoutException.class, () -> manager.requestConnection(ROUTE, null).get(200, TimeUnit.MILLISECONDS));
+            assertEquals(1, registry.counter("feign.http.pool.lease.timeout").count());
+            // 归还连接后可以再次获取
+            manager.releaseConnection(leased, null, 0, TimeUnit.MILLISECONDS);
+            manager.requestConnection(ROUTE, null).get(1, TimeUnit.SECONDS);
+            assertEquals(3, registry.timer("feign.http.pool.lease").count());
+            assertEquals(1, registry.counter("feign.http.pool.lease.timeout").count());
+        } finally {
+            manager.shutdown();
+        }
+    }
+}
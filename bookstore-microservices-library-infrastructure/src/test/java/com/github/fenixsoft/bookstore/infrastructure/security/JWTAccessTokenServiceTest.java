@@ -0,0 +1,116 @@
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import com.github.fenixsoft.bookstore.domain.security.AccountChangedEvent;
+import com.github.fenixsoft.bookstore.domain.security.Role;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 18:10
+ **/
+class JWTAccessTokenServiceTest {
+
+    private static final List<GrantedAuthority> AUTHORITIES = AuthorityUtils.createAuthorityList(Role.USER);
+
+    /**
+     * 每次验签都会按用户名查询一次用户，以查询次数判断是否命中了缓存
+     */
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final HS256JWTAccessToken token = new HS256JWTAccessToken(username -> {
+        lookups.incrementAndGet();
+        return new User(username, "N/A", AUTHORITIES);
+    });
+
+    @Test
+    void cacheVerifiedToken() throws Exception {
+        JWTAccessTokenService service = service(600000);
+        String value = issue("icyfenix", 3600);
+        OAuth2Authentication first = service.loadAuthentication(value);
+        OAuth2Authentication second = service.loadAuthentication(value);
+        assertEquals(1, lookups.get());
+        assertEquals("icyfenix", second.getName());
+        // 每次返回新的对象，请求之间不共享认证细节
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void expireWithToken() throws Exception {
+        JWTAccessTokenService service = service(600000);
+        // exp以秒为单位，截断后还有1至2秒有效期，3秒后令牌必定已经过期
+        String value = issue("icyfenix", 2);
+        assertNotNull(service.loadAuthentication(value));
+        Thread.sleep(3000);
+        // 令牌过期后不能再从缓存中取得认证信息
+        assertThrows(InvalidTokenException.class, () -> service.loadAuthentication(value));
+    }
+
+    @Test
+    void expireAfterMaxTtl() throws Exception {
+        JWTAccessTokenService service = service(200);
+        String value = issue("icyfenix", 3600);
+        service.loadAuthentication(value);
+        service.loadAuthentication(value);
+        assertEquals(1, lookups.get());
+        Thread.sleep(400);
+        // 超过max-ttl后重新验签，令牌中的用户信息不会无限期地陈旧下去
+        service.loadAuthentication(value);
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void evictOnAccountChanged() throws Exception {
+        JWTAccessTokenService service = service(600000);
+        String icyfenix = issue("icyfenix", 3600);
+        String other = issue("other", 3600);
+        service.loadAuthentication(icyfenix);
+        service.loadAuthentication(other);
+        assertEquals(2, lookups.get());
+        service.onAccountChanged(new AccountChangedEvent(this, "icyfenix"));
+        // 只清除变动用户的缓存
+        service.loadAuthentication(other);
+        assertEquals(2, lookups.get());
+        service.loadAuthentication(icyfenix);
+        assertEquals(3, lookups.get());
+    }
+
+    private JWTAccessTokenService service(long cacheMaxTtl) throws Exception {
+        token.afterPropertiesSet();
+        OAuthClientDetailsService clients = new OAuthClientDetailsService();
+        ReflectionTestUtils.setField(clients, "passwordEncoder", new BCryptPasswordEncoder(4));
+        clients.init();
+        return new JWTAccessTokenService(token, clients, Optional.empty(), new SimpleMeterRegistry(), 100, cacheMaxTtl);
+    }
+
+    /**
+     * 以前端客户端的密码模式签发令牌，expiresIn为有效期的秒数
+     */
+    private String issue(String username, int expiresIn) {
+        OAuth2Request request = new OAuth2Request(Collections.emptyMap(), "bookstore_frontend", AUTHORITIES, true,
+                Collections.singleton("BROWSER"), null, null, null, null);
+        OAuth2Authentication authentication = new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(username, "N/A", AUTHORITIES));
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+        accessToken.setExpiration(new Date(System.currentTimeMillis() + expiresIn * 1000L));
+        return token.enhance(accessToken, authentication).getValue();
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 17:45
+ **/
+class ServiceTokenManagerTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private ServiceTokenManager manager;
+
+    @AfterEach
+    void shutdown() {
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    void singleFlight() throws Exception {
+        CountDownLatch issuing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        manager = new ServiceTokenManager(new ClientCredentialsResourceDetails(), provider(() -> {
+            issuing.countDown();
+            awaitLatch(release);
+            return token(3600);
+        }), 0.8, registry);
+        // 启动时后台就开始申请第一个令牌，在它完成之前，并发的调用者都要等待同一个申请的结果
+        assertTrue(issuing.await(5, TimeUnit.SECONDS));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<OAuth2AccessToken>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(manager::getToken));
+            }
+            await(() -> blocked() == 8);
+            release.countDown();
+            OAuth2AccessToken token = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<OAuth2AccessToken> result : results) {
+                assertSame(token, result.get(5, TimeUnit.SECONDS));
+            }
+            // 只向安全服务申请了一次
+            assertEquals(1, requests.get());
+            // 令牌有效期内直接返回，不再等待
+            assertSame(token, manager.getToken());
+            assertEquals(8, blocked());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void refreshAheadOfExpiry() {
+        // 有效期10秒，过去10%即1秒后就在后台刷新
+        manager = new ServiceTokenManager(new ClientCredentialsResourceDetails(), provider(() -> token(10)), 0.1, registry);
+        await(() -> requests.get() >= 2);
+        assertNotNull(manager.getToken());
+        // 调用者始终拿到后台刷新好的令牌，没有等待过
+        assertEquals(0, blocked());
+    }
+
+    @Test
+    void retryAfterFailure() throws Exception {
+        CountDownLatch issuing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        manager = new ServiceTokenManager(new ClientCredentialsResourceDetails(), provider(() -> {
+            if (requests.get() == 1) {
+                issuing.countDown();
+                awaitLatch(release);
+                throw new IllegalStateException("安全服务尚未就绪");
+            }
+            return token(3600);
+        }), 0.8, registry);
+        assertTrue(issuing.await(5, TimeUnit.SECONDS));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<OAuth2AccessToken> waiting = executor.submit(manager::getToken);
+            await(() -> blocked() == 1);
+            release.countDown();
+            // 等待中的调用者得到同一个失败
+            ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals(1, registry.counter("service.token.failure").count());
+        } finally {
+            executor.shutdownNow();
+        }
+        // 后台按退避间隔重试，成功后调用者直接拿到令牌
+        await(() -> requests.get() >= 2);
+        assertNotNull(manager.getToken());
+        assertEquals(2, requests.get());
+    }
+
+    private AccessTokenProvider provider(Supplier<OAuth2AccessToken> issuer) {
+        return new ClientCredentialsAccessTokenProvider() {
+            @Override
+            public OAuth2AccessToken obtainAccessToken(OAuth2ProtectedResourceDetails details, AccessTokenRequest request) {
+                requests.incrementAndGet();
+                return issuer.get();
+            }
+        };
+    }
+
+    private double blocked() {
+        return registry.counter("service.token.blocked").count();
+    }
+
+    private static OAuth2AccessToken token(int expiresIn) {
+        DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+        token.setExpiration(new Date(System.currentTimeMillis() + expiresIn * 1000L));
+        return token;
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 等待条件成立，最多5秒
+     */
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+    }
+}
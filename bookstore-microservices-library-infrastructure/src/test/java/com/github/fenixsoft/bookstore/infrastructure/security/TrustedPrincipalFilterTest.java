@@ -0,0 +1,138 @@
+package com.github.fenixsoft.bookstore.infrastructure.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fenixsoft.bookstore.domain.security.Role;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author icyfenix@gmail.com
+ * @date 2020/5/16 17:20
+ **/
+class TrustedPrincipalFilterTest {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+    private static final String RESOURCE_ID = "oauth2-resource";
+
+    private static final String TOKEN = "Bearer some.jwt.token";
+
+    private final TrustedPrincipalFilter filter = new TrustedPrincipalFilter(SECRET, RESOURCE_ID, username -> null);
+
+    @AfterEach
+    void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void acceptSignedPrincipal() throws Exception {
+        MockFilterChain chain = doFilter(sign(claims(60), SECRET));
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        assertNotNull(authentication);
+        assertEquals("icyfenix", authentication.getName());
+        assertTrue(authentication.getAuthorities().stream().anyMatch(a -> Role.ADMIN.equals(a.getAuthority())));
+        // 已由凭证认证，后续的OAuth2资源过滤器看不到令牌，不会再重复验签
+        HttpServletRequest forwarded = (HttpServletRequest) chain.getRequest();
+        assertNull(forwarded.getHeader(HttpHeaders.AUTHORIZATION));
+        assertFalse(forwarded.getHeaders(HttpHeaders.AUTHORIZATION).hasMoreElements());
+    }
+
+    @Test
+    void rejectForgedPrincipal() throws Exception {
+        // 绕过网关直接访问服务的调用者，不知道密钥时伪造不出有效的管理员凭证
+        assertFallThrough(sign(claims(60), "fedcba9876543210fedcba9876543210"));
+        // 只有负载没有签名
+        String signed = sign(claims(60), SECRET);
+        assertFallThrough(signed.substring(0, signed.indexOf('.')));
+        // 签名有效但篡改了负载
+        Map<String, Object> tampered = claims(60);
+        tampered.put("user_name", "admin");
+        assertFallThrough(encode(tampered) + signed.substring(signed.indexOf('.')));
+        // 无法解码的签名
+        assertFallThrough(encode(claims(60)) + ".%%%");
+    }
+
+    @Test
+    void rejectExpiredPrincipal() throws Exception {
+        assertFallThrough(sign(claims(-1), SECRET));
+    }
+
+    @Test
+    void otherResourceFallThrough() throws Exception {
+        Map<String, Object> claims = claims(60);
+        claims.put("aud", Collections.singletonList("other-resource"));
+        assertFallThrough(sign(claims, SECRET));
+        // 包含本服务的资源ID时正常接受
+        claims.put("aud", Arrays.asList("other-resource", RESOURCE_ID));
+        doFilter(sign(claims, SECRET));
+        assertNotNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    @Test
+    void rejectWeakSecret() {
+        assertThrows(IllegalStateException.class, () -> new TrustedPrincipalFilter(null, RESOURCE_ID, username -> null));
+        assertThrows(IllegalStateException.class, () -> new TrustedPrincipalFilter("   ", RESOURCE_ID, username -> null));
+        assertThrows(IllegalStateException.class, () -> new TrustedPrincipalFilter("0123456789abcdef", RESOURCE_ID, username -> null));
+    }
+
+    /**
+     * 无效的凭证不做任何处理，请求原样交由后续的过滤器按令牌校验
+     */
+    private void assertFallThrough(String principal) throws Exception {
+        MockFilterChain chain = doFilter(principal);
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+        assertEquals(TOKEN, ((HttpServletRequest) chain.getRequest()).getHeader(HttpHeaders.AUTHORIZATION));
+    }
+
+    private MockFilterChain doFilter(String principal) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/restful/products");
+        request.addHeader(HttpHeaders.AUTHORIZATION, TOKEN);
+        request.addHeader(TrustedPrincipalFilter.HEADER, principal);
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        return chain;
+    }
+
+    /**
+     * 与网关转发的负载相同，expiresIn为距离过期的秒数
+     */
+    private static Map<String, Object> claims(long expiresIn) {
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("user_name", "icyfenix");
+        claims.put("account_id", 1);
+        claims.put("authorities", Arrays.asList(Role.USER, Role.ADMIN));
+        claims.put("client_id", "bookstore_frontend");
+        claims.put("scope", Collections.singletonList("BROWSER"));
+        claims.put("exp", System.currentTimeMillis() / 1000 + expiresIn);
+        return claims;
+    }
+
+    private static String sign(Map<String, Object> claims, String secret) throws Exception {
+        String payload = encode(claims);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String encode(Map<String, Object> claims) throws Exception {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(new ObjectMapper().writeValueAsBytes(claims));
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.fenixsoft.bookstore.gateway;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileCopyUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.PRE_DECORATION_FILTER_ORDER;
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.PRE_TYPE;
+
+/**
+ * 在网关统一校验JWT令牌，向下游服务转发签名过的内部用户凭证
+ * <p>
+ * 不启用时，网关原样转发Authorization，每个下游服务都要各自验签、解析令牌。
+ * 启用后，网关验签一次，把令牌负载中鉴权所需的几项（用户名、用户ID、授权、客户端、范围、资源ID、过期时间）
+ * 编码为“Base64(JSON).Base64(HMAC-SHA256)”放入{@link #HEADER}中，下游服务开启信任模式后只需计算一次HMAC即可还原用户。
+ * 令牌无效时不拒绝请求，交由下游服务按原来的方式处理；客户端自行伪造的同名Header会被覆盖，也无法通过HMAC校验。
+ * 密钥没有默认值，为空或短于{@link #MIN_SECRET_LENGTH}字节时网关拒绝启动
+ *
+ * @author icyfenix@gmail.com
+ * @date 2020/5/15 10:30
+ **/
+@Component
+@ConditionalOnProperty(prefix = "bookstore.gateway.trusted-principal", name = "enabled", havingValue = "true")
+public class TrustedPrincipalFilter extends ZuulFilter {
+
+    public static final String HEADER = "X-Bookstore-Principal";
+
+    public static final int MIN_SECRET_LENGTH = 32;
+
+    private static final Logger log = LoggerFactory.getLogger(TrustedPrincipalFilter.class);
+
+    private static final String BEARER = "bearer ";
+
+    private static final String[] FORWARDED_CLAIMS = {"user_name", "account_id", "authorities", "client_id", "scope", "aud", "exp"};
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final RsaVerifier verifier;
+
+    private final SecretKeySpec key;
+
+    public TrustedPrincipalFilter(@Value("classpath:public.cert") Resource publicKey,
+                                  @Value("${bookstore.gateway.trusted-principal.secret:}") String secret) throws IOException {
+        this.verifier = new RsaVerifier(new String(FileCopyUtils.copyToByteArray(publicKey.getInputStream()), StandardCharsets.UTF_8));
+        byte[] bytes = secret == null ? new byte[0] : secret.trim().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < MIN_SECRET_LENGTH) {
+            throw new IllegalStateException("已开启trusted-principal，但密钥为空或短于" + MIN_SECRET_LENGTH + "字节，请通过PRINCIPAL_SECRET设置");
+        }
+        this.key = new SecretKeySpec(bytes, "HmacSHA256");
+    }
+
+    @Override
+    public String filterType() {
+        return PRE_TYPE;
+    }
+
+    @Override
+    public int filterOrder() {
+        return PRE_DECORATION_FILTER_ORDER + 1;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        return true;
+    }
+
+    @Override
+    public Object run() {
+        RequestContext context = RequestContext.getCurrentContext();
+        String authorization = context.getRequest().getHeader(HttpHeaders.AUTHORIZATION);
+        String principal = "";
+        if (authorization != null && authorization.toLowerCase().startsWith(BEARER)) {
+            try {
+                principal = sign(authorization.substring(BEARER.length()).trim());
+            } catch (RuntimeException | IOException | GeneralSecurityException e) {
+                log.debug("令牌校验失败，交由下游服务处理：{}", e.getMessage());
+            }
+        }
+        // 总是设置该Header，覆盖客户端可能自带的同名Header
+        context.addZuulRequestHeader(HEADER, principal);
+        return null;
+    }
+
+    /**
+     * 验签并检查过期时间，返回签名后的内部用户凭证；令牌没有用户（客户端模式）或已过期时返回空串
+     */
+    @SuppressWarnings("unchecked")
+    private String sign(String token) throws IOException, GeneralSecurityException {
+        Map<String, Object> claims = mapper.readValue(JwtHelper.decodeAndVerify(token, verifier).getClaims(), Map.class);
+        Object exp = claims.get("exp");
+        if (!claims.containsKey("user_name") || !(exp instanceof Number) || ((Number) exp).longValue() * 1000 <= System.currentTimeMillis()) {
+            return "";
+        }
+        Map<String, Object> forwarded = new LinkedHashMap<>();
+        Stream.of(FORWARDED_CLAIMS).filter(claims::containsKey).forEach(c -> forwarded.put(c, claims.get(c)));
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(mapper.writeValueAsBytes(forwarded));
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key);
+        String signature = Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+        return payload + "." + signature;
+    }
+}